@@ -1,60 +1,1887 @@
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
-// Паттерн "Одиночка" (Singleton)
+// Неизменяемый снимок настроек. Снимок не меняется после создания,
+// поэтому читать его можно из любых потоков без блокировок.
+// Типизированные значения разбираются при первом обращении и запоминаются
+// в снимке: следующий getInt того же ключа не разбирает строку заново.
+// Снимок может опираться на двоичный файл настроек (CompiledConfig):
+// тогда в карте хранятся только изменения поверх него.
+final class ConfigSnapshot {
+    static final ConfigSnapshot EMPTY = new ConfigSnapshot(new HashMap<>());
+
+    // Отметка в карте изменений: ключ двоичного файла удален
+    static final String REMOVED = new String("");
+
+    private static final Function<String, Integer> INT = raw -> Integer.valueOf(raw.trim());
+    private static final Function<String, Long> LONG = raw -> Long.valueOf(raw.trim());
+    private static final Function<String, Boolean> BOOLEAN = ConfigSnapshot::parseBoolean;
+    private static final Function<String, Duration> DURATION = ConfigSnapshot::parseDuration;
+    private static final Function<String, List<String>> LIST = ConfigSnapshot::parseList;
+    private static final ClassValue<Function<String, ?>> ENUMS = new ClassValue<Function<String, ?>>() {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected Function<String, ?> computeValue(Class<?> type) {
+            return raw -> Enum.valueOf((Class) type, raw.trim().toUpperCase());
+        }
+    };
+
+    private final HashMap<String, String> values;
+    private final CompiledConfig compiled; // null - все настройки в values
+    private final ConcurrentHashMap<String, Parsed> parsed = new ConcurrentHashMap<>();
+    private int size = -1; // число настроек поверх двоичного файла, считается при первом size()
+
+    // Последнее разобранное значение ключа и разборщик, которым оно получено
+    private static final class Parsed {
+        final Function<String, ?> parser;
+        final Object value;
+
+        Parsed(Function<String, ?> parser, Object value) {
+            this.parser = parser;
+            this.value = value;
+        }
+    }
+
+    // Карта передается во владение снимку и больше не изменяется
+    ConfigSnapshot(HashMap<String, String> values) {
+        this(values, null);
+    }
+
+    ConfigSnapshot(HashMap<String, String> values, CompiledConfig compiled) {
+        this.values = values;
+        this.compiled = compiled;
+    }
+
+    // Значение или null
+    public String get(String key) {
+        String value = values.get(key);
+        if (value == null) {
+            return compiled != null ? compiled.get(key) : null;
+        }
+        return value == REMOVED ? null : value;
+    }
+
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    // При двоичном файле проверяются только ключи карты изменений
+    public int size() {
+        if (compiled == null) {
+            return values.size();
+        }
+        int result = size;
+        if (result < 0) {
+            result = compiled.size();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    result--;
+                } else if (compiled.get(entry.getKey()) == null) {
+                    result++;
+                }
+            }
+            size = result;
+        }
+        return result;
+    }
+
+    // Все настройки; при двоичном файле карта собирается заново при каждом вызове
+    public Map<String, String> asMap() {
+        if (compiled == null) {
+            return Collections.unmodifiableMap(values);
+        }
+        Map<String, String> merged = new HashMap<>(compiled.size() + values.size());
+        compiled.forEach(merged::put);
+        values.forEach((key, value) -> {
+            if (value == REMOVED) {
+                merged.remove(key);
+            } else {
+                merged.put(key, value);
+            }
+        });
+        return Collections.unmodifiableMap(merged);
+    }
+
+    // Изменения поверх двоичного файла (или все настройки, если его нет)
+    HashMap<String, String> overlay() {
+        return values;
+    }
+
+    CompiledConfig compiled() {
+        return compiled;
+    }
+
+    // Строковое значение; отсутствующая настройка - NoSuchElementException
+    public String getString(String key) {
+        return require(key, get(key));
+    }
+
+    public int getInt(String key) {
+        return getParsed(key, INT, true);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Integer value = getParsed(key, INT, false);
+        return value != null ? value : defaultValue;
+    }
+
+    public long getLong(String key) {
+        return getParsed(key, LONG, true);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Long value = getParsed(key, LONG, false);
+        return value != null ? value : defaultValue;
+    }
+
+    // true/false, yes/no, on/off, 1/0
+    public boolean getBoolean(String key) {
+        return getParsed(key, BOOLEAN, true);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Boolean value = getParsed(key, BOOLEAN, false);
+        return value != null ? value : defaultValue;
+    }
+
+    // "500ms", "30s", "5m", "2h", "1d", ISO-8601 ("PT30S") или число миллисекунд
+    public Duration getDuration(String key) {
+        return getParsed(key, DURATION, true);
+    }
+
+    public Duration getDuration(String key, Duration defaultValue) {
+        Duration value = getParsed(key, DURATION, false);
+        return value != null ? value : defaultValue;
+    }
+
+    // Значения через запятую без пробелов по краям; пустые элементы пропускаются
+    public List<String> getList(String key) {
+        return getParsed(key, LIST, true);
+    }
+
+    public List<String> getList(String key, List<String> defaultValue) {
+        List<String> value = getParsed(key, LIST, false);
+        return value != null ? value : defaultValue;
+    }
+
+    // Константа перечисления по имени без учета регистра
+    @SuppressWarnings("unchecked")
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type) {
+        return getParsed(key, (Function<String, E>) ENUMS.get(type), true);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        E value = getParsed(key, (Function<String, E>) ENUMS.get(type), false);
+        return value != null ? value : defaultValue;
+    }
+
+    // Разобранное значение из кэша снимка; null - настройки нет и она необязательна
+    @SuppressWarnings("unchecked")
+    private <T> T getParsed(String key, Function<String, T> parser, boolean required) {
+        Parsed cached = parsed.get(key);
+        if (cached != null && cached.parser == parser) {
+            return (T) cached.value;
+        }
+        String raw = get(key);
+        if (raw == null) {
+            if (required) {
+                require(key, null);
+            }
+            return null;
+        }
+        T value;
+        try {
+            value = parser.apply(raw);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Некорректное значение настройки " + key + "='" + raw + "': "
+                    + e.getMessage(), e);
+        }
+        parsed.put(key, new Parsed(parser, value));
+        return value;
+    }
+
+    private static String require(String key, String value) {
+        if (value == null) {
+            throw new NoSuchElementException("Настройка не найдена: " + key);
+        }
+        return value;
+    }
+
+    private static Boolean parseBoolean(String raw) {
+        switch (raw.trim().toLowerCase()) {
+            case "true":
+            case "yes":
+            case "on":
+            case "1":
+                return Boolean.TRUE;
+            case "false":
+            case "no":
+            case "off":
+            case "0":
+                return Boolean.FALSE;
+            default:
+                throw new IllegalArgumentException("ожидалось логическое значение");
+        }
+    }
+
+    private static Duration parseDuration(String raw) {
+        String text = raw.trim().toLowerCase();
+        if (text.startsWith("p")) {
+            return Duration.parse(text.toUpperCase());
+        }
+        int unitStart = 0;
+        while (unitStart < text.length() && (Character.isDigit(text.charAt(unitStart)) || text.charAt(unitStart) == '-')) {
+            unitStart++;
+        }
+        long amount = Long.parseLong(text.substring(0, unitStart));
+        switch (text.substring(unitStart).trim()) {
+            case "":
+            case "ms":
+                return Duration.ofMillis(amount);
+            case "s":
+                return Duration.ofSeconds(amount);
+            case "m":
+                return Duration.ofMinutes(amount);
+            case "h":
+                return Duration.ofHours(amount);
+            case "d":
+                return Duration.ofDays(amount);
+            default:
+                throw new IllegalArgumentException("неизвестная единица времени");
+        }
+    }
+
+    private static List<String> parseList(String raw) {
+        List<String> items = new ArrayList<>();
+        for (String item : raw.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return Collections.unmodifiableList(items);
+    }
+}
+
+// Паттерн "Одиночка" (Singleton).
+// Настройки хранятся в неизменяемом снимке, опубликованном через volatile-ссылку:
+// getSetting - одно чтение ссылки и один поиск в хэш-таблице без блокировок.
+// Изменения собираются в новом снимке и публикуются целиком (копирование при записи),
+// поэтому читатели никогда не видят половину изменения из нескольких ключей.
 class ConfigurationManager {
     private static ConfigurationManager instance;
     private static Object lock = new Object();
-    private Map<String, String> settings;
+    private final Object updateLock = new Object();
+    private volatile ConfigSnapshot snapshot = ConfigSnapshot.EMPTY;
+    private final List<Subscription> listeners = new CopyOnWriteArrayList<>();
+    private ConfigJournal journal; // null - изменения не журналируются (доступ под updateLock)
+    private volatile List<ConfigSource> layers = Collections.emptyList();
+    private SharedConfigRegion sharedWriter; // этот процесс публикует настройки (доступ под updateLock)
+    private volatile SharedConfigRegion sharedReader; // этот процесс читает настройки писателя
+    private volatile long sharedVersion = -1;
+    private volatile long sharedSkippedVersion = -1; // версия, которую не удалось прочитать: до ее смены не читается
+    private volatile CompiledConfig sharedCompiled; // двоичный файл последней прочитанной публикации
+    // Изменения, ожидающие рассылки подписчикам, в порядке публикации (доступ под updateLock)
+    private final ArrayDeque<List<ConfigChange>> notifications = new ArrayDeque<>();
+    private boolean dispatching; // какой-то поток уже рассылает очередь (доступ под updateLock)
+
+    // Подписка на изменения одного ключа или всех ключей с общим префиксом
+    private static class Subscription {
+        final String key;
+        final boolean prefix;
+        final Consumer<List<ConfigChange>> listener;
+
+        Subscription(String key, boolean prefix, Consumer<List<ConfigChange>> listener) {
+            this.key = key;
+            this.prefix = prefix;
+            this.listener = listener;
+        }
+
+        boolean matches(String changedKey) {
+            return prefix ? changedKey.startsWith(key) : changedKey.equals(key);
+        }
+    }
+
+    // Построитель нового снимка на основе текущего.
+    // Карта построителя передается снимку без копирования, поэтому после update
+    // построитель закрыт: изменения через сохраненную ссылку - IllegalStateException
+    public static class Builder {
+        private final HashMap<String, String> values;
+        private CompiledConfig compiled;
+        private final Set<String> touched = new HashSet<>(); // ключи, которые могли измениться
+        private boolean replaced; // снимок заменен целиком: измениться мог любой ключ
+        private boolean built;
+
+        private Builder(ConfigSnapshot base) {
+            values = new HashMap<>(base.overlay());
+            compiled = base.compiled();
+        }
+
+        public Builder set(String key, String value) {
+            checkOpen();
+            values.put(key, value);
+            touched.add(key);
+            return this;
+        }
+
+        public Builder setAll(Map<String, String> settings) {
+            checkOpen();
+            values.putAll(settings);
+            touched.addAll(settings.keySet());
+            return this;
+        }
+
+        public Builder remove(String key) {
+            checkOpen();
+            if (compiled != null && compiled.get(key) != null) {
+                values.put(key, ConfigSnapshot.REMOVED);
+            } else {
+                values.remove(key);
+            }
+            touched.add(key);
+            return this;
+        }
+
+        public Builder clear() {
+            checkOpen();
+            values.clear();
+            compiled = null;
+            replaced = true;
+            return this;
+        }
+
+        // Все настройки заменяются содержимым двоичного файла
+        public Builder replaceWith(CompiledConfig config) {
+            clear();
+            compiled = config;
+            return this;
+        }
+
+        // Текущее значение в строящемся снимке или null
+        public String get(String key) {
+            String value = values.get(key);
+            if (value == null) {
+                return compiled != null ? compiled.get(key) : null;
+            }
+            return value == ConfigSnapshot.REMOVED ? null : value;
+        }
+
+        private ConfigSnapshot build() {
+            built = true;
+            return new ConfigSnapshot(values, compiled);
+        }
+
+        private void checkOpen() {
+            if (built) {
+                throw new IllegalStateException("Построитель уже использован: снимок опубликован");
+            }
+        }
+    }
+
+    // Приватный конструктор
+    private ConfigurationManager() {
+    }
+
+    // Метод для получения единственного экземпляра
+    public static ConfigurationManager getInstance() {
+        if (instance == null) {
+            synchronized (lock) {
+                if (instance == null) {
+                    instance = new ConfigurationManager();
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Текущий снимок: несколько чтений из него согласованы между собой
+    public ConfigSnapshot getSnapshot() {
+        return current();
+    }
+
+    // Атомарное изменение нескольких настроек: читатели видят либо старый снимок, либо новый.
+    // В журналируемом режиме изменения записываются в журнал до публикации снимка.
+    // Подписчики получают только затронувшие их изменения по порядку публикации,
+    // уже после снятия блокировки: медленный обработчик не задерживает других писателей.
+    // Очередь рассылает один поток за раз, поэтому обработчик может быть вызван
+    // в потоке другого update, а update из обработчика разошлется после него
+    public void update(Consumer<Builder> changes) {
+        synchronized (updateLock) {
+            ConfigSnapshot before = snapshot;
+            Builder builder = new Builder(before);
+            changes.accept(builder);
+            ConfigSnapshot after = builder.build();
+            // Замена двоичным файлом журналируется ссылкой на файл, а не всеми его ключами
+            boolean replacedByCompiled = builder.replaced && after.compiled() != null;
+            List<ConfigChange> diff = null;
+            if ((journal != null && !replacedByCompiled) || !listeners.isEmpty()) {
+                Collection<String> keys = builder.touched;
+                if (builder.replaced) {
+                    keys = new HashSet<>(before.asMap().keySet());
+                    keys.addAll(after.asMap().keySet());
+                }
+                diff = ConfigChange.diff(before, after, keys);
+            }
+            // Размер проверяется до журнала: отвергнутое изменение не должно в нем остаться
+            byte[] shared = null;
+            if (sharedWriter != null) {
+                try {
+                    shared = sharedWriter.prepare(after);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Не удалось опубликовать настройки в общую область", e);
+                }
+            }
+            if (journal != null) {
+                try {
+                    boolean compact = replacedByCompiled
+                            ? journal.appendReplacement(after.compiled(), after.overlay())
+                            : journal.append(diff);
+                    if (compact) {
+                        journal.submit(this::compactInBackground);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Не удалось записать изменение настроек в журнал", e);
+                }
+            }
+            if (shared != null) {
+                sharedWriter.publish(shared);
+            }
+            snapshot = after;
+            if (diff != null && !diff.isEmpty() && !listeners.isEmpty()) {
+                notifications.add(diff);
+            }
+        }
+        dispatchNotifications();
+    }
+
+    // Рассылка очереди изменений вне updateLock; вложенный update (под блокировкой
+    // вызывающего) оставляет рассылку внешнему вызову
+    private void dispatchNotifications() {
+        if (Thread.holdsLock(updateLock)) {
+            return;
+        }
+        synchronized (updateLock) {
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+        boolean drained = false;
+        try {
+            while (true) {
+                List<ConfigChange> changes;
+                synchronized (updateLock) {
+                    changes = notifications.poll();
+                    if (changes == null) {
+                        dispatching = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                notifyListeners(changes);
+            }
+        } finally {
+            if (!drained) {
+                synchronized (updateLock) {
+                    dispatching = false;
+                }
+            }
+        }
+    }
+
+    // Общие настройки процессов одной машины: этот процесс - единственный писатель.
+    // Текущие настройки публикуются сразу, дальше - после каждого изменения
+    public void shareAs(String regionPath, int capacity) throws IOException {
+        SharedConfigRegion region = SharedConfigRegion.openWriter(Paths.get(regionPath), capacity);
+        synchronized (updateLock) {
+            try {
+                region.publish(snapshot);
+            } catch (IOException e) {
+                region.close();
+                throw e;
+            }
+            if (sharedWriter != null) {
+                sharedWriter.close();
+            }
+            sharedWriter = region;
+        }
+    }
+
+    // Этот процесс читает общие настройки: при каждом обращении сверяется версия
+    // области (одно чтение памяти), снимок обновляется только после публикации писателя.
+    // Локальные изменения действуют до следующей публикации
+    public void attachShared(String regionPath) throws IOException {
+        SharedConfigRegion region = SharedConfigRegion.openReader(Paths.get(regionPath));
+        SharedConfigRegion previous = sharedReader;
+        sharedVersion = -1;
+        sharedSkippedVersion = -1;
+        sharedReader = region;
+        if (previous != null) {
+            previous.close();
+        }
+        refreshShared(region);
+    }
+
+    // Текущий снимок с учетом новой публикации в общей области
+    private ConfigSnapshot current() {
+        SharedConfigRegion region = sharedReader;
+        if (region != null) {
+            long version = region.version();
+            if (version != sharedVersion && version != sharedSkippedVersion) {
+                refreshShared(region);
+            }
+        }
+        return snapshot;
+    }
+
+    // Область читается вне updateLock; неготовая версия (запись не закончена,
+    // писатель упал, публикаций не было) запоминается и не перечитывается до ее смены
+    private void refreshShared(SharedConfigRegion region) {
+        long seen = region.version();
+        SharedConfigRegion.Contents contents = region.read();
+        CompiledConfig base = contents != null ? sharedBase(contents) : null;
+        if (contents == null || (contents.compiledFile != null && base == null)) {
+            sharedSkippedVersion = seen; // пока остаются прежние настройки
+            return;
+        }
+        synchronized (updateLock) {
+            // Другой поток мог уже применить эту или более новую публикацию
+            if (sharedReader != region || contents.version <= sharedVersion) {
+                return;
+            }
+            update(builder -> {
+                builder.clear();
+                if (base != null) {
+                    builder.replaceWith(base);
+                }
+                contents.settings.forEach((key, value) -> {
+                    if (value == ConfigSnapshot.REMOVED) {
+                        builder.remove(key);
+                    } else {
+                        builder.set(key, value);
+                    }
+                });
+            });
+            sharedVersion = contents.version;
+        }
+        dispatchNotifications();
+    }
+
+    // Двоичный файл, поверх которого опубликованы настройки; null - его нет
+    // или он не совпадает с файлом писателя (публикация пока не применяется)
+    private CompiledConfig sharedBase(SharedConfigRegion.Contents contents) {
+        if (contents.compiledFile == null) {
+            return null;
+        }
+        CompiledConfig cached = sharedCompiled;
+        if (cached != null && cached.file().toString().equals(contents.compiledFile)
+                && cached.stamp().equals(contents.compiledStamp)) {
+            return cached;
+        }
+        try {
+            CompiledConfig opened = CompiledConfig.open(Paths.get(contents.compiledFile));
+            if (!opened.stamp().equals(contents.compiledStamp)) {
+                System.err.println("Двоичный файл настроек " + contents.compiledFile + " не совпадает с файлом писателя");
+                return null;
+            }
+            sharedCompiled = opened;
+            return opened;
+        } catch (IOException e) {
+            System.err.println("Не удалось открыть двоичный файл общих настроек: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Журналируемый режим: настройки восстанавливаются из filePath и его журнала,
+    // дальше каждое изменение дописывается в журнал одной записью
+    public void enableJournal(String filePath) throws IOException {
+        enableJournal(filePath, 1000);
+    }
+
+    // compactThreshold - после скольких записей журнал сжимается в фоне
+    public void enableJournal(String filePath, int compactThreshold) throws IOException {
+        ConfigJournal next = new ConfigJournal(Paths.get(filePath), compactThreshold);
+        Map<String, String> restored = next.replay();
+        CompiledConfig base = next.restoredCompiled();
+        synchronized (updateLock) {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            update(builder -> {
+                if (base != null) {
+                    builder.replaceWith(base);
+                }
+                restored.forEach((key, value) -> {
+                    if (value == ConfigSnapshot.REMOVED) {
+                        builder.remove(key);
+                    } else {
+                        builder.set(key, value);
+                    }
+                });
+            });
+            journal = next;
+        }
+        dispatchNotifications();
+        // Файл настроек сразу отражает полное состояние, журнал начинается с нуля
+        compactJournal();
+    }
+
+    // Сжатие журнала: текущий снимок атомарно заменяет файл настроек
+    public void compactJournal() throws IOException {
+        ConfigJournal current;
+        ConfigSnapshot captured;
+        synchronized (updateLock) {
+            current = journal;
+            if (current == null || !current.beginCompaction()) {
+                return;
+            }
+            captured = snapshot;
+        }
+        current.finishCompaction(captured);
+    }
+
+    private void compactInBackground() {
+        try {
+            compactJournal();
+        } catch (IOException e) {
+            System.err.println("Ошибка сжатия журнала настроек: " + e.getMessage());
+        }
+    }
+
+    private void notifyListeners(List<ConfigChange> changes) {
+        for (Subscription subscription : listeners) {
+            List<ConfigChange> relevant = new ArrayList<>();
+            for (ConfigChange change : changes) {
+                if (subscription.matches(change.getKey())) {
+                    relevant.add(change);
+                }
+            }
+            if (!relevant.isEmpty()) {
+                try {
+                    subscription.listener.accept(relevant);
+                } catch (RuntimeException e) {
+                    System.err.println("Ошибка обработчика изменения настроек: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Подписка на изменения настройки key
+    public void addListener(String key, Consumer<List<ConfigChange>> listener) {
+        listeners.add(new Subscription(key, false, listener));
+    }
+
+    // Подписка на изменения всех настроек, имена которых начинаются с prefix
+    public void addPrefixListener(String prefix, Consumer<List<ConfigChange>> listener) {
+        listeners.add(new Subscription(prefix, true, listener));
+    }
+
+    public void removeListener(Consumer<List<ConfigChange>> listener) {
+        listeners.removeIf(subscription -> subscription.listener == listener);
+    }
+
+    // Загрузка файла и перечитывание его при каждом изменении; остановка - close() у результата
+    public ConfigWatcher watch(Path file) throws IOException {
+        return watch(file, 200);
+    }
+
+    public ConfigWatcher watch(Path file, long debounceMs) throws IOException {
+        return new ConfigWatcher(this, file, debounceMs);
+    }
+
+    // Перевод текстового файла настроек в двоичный формат CompiledConfig
+    public static void convertToBinary(String textFilePath, String binaryFilePath) throws IOException {
+        CompiledConfig.compile(readFile(textFilePath), Paths.get(binaryFilePath));
+    }
+
+    // Загрузка двоичного файла настроек вместо текущих: значения читаются прямо
+    // из отображенного файла, изменения через setSetting хранятся поверх него.
+    // Журнал запоминает только путь к файлу, поэтому файл не должен меняться до сжатия журнала
+    public void loadCompiled(String binaryFilePath) throws IOException {
+        CompiledConfig compiled = CompiledConfig.open(Paths.get(binaryFilePath));
+        update(builder -> builder.replaceWith(compiled));
+    }
+
+    // Многоуровневая конфигурация: источники в порядке возрастания приоритета,
+    // например значения по умолчанию, файлы, окружение, системные свойства.
+    // Уровни сводятся в одну таблицу при загрузке, поэтому getSetting остается
+    // одним поиском независимо от числа уровней. Настройки заменяются целиком
+    public void loadLayers(List<ConfigSource> sources) throws IOException {
+        Map<String, String> flat = flatten(sources);
+        layers = new ArrayList<>(sources);
+        update(builder -> builder.clear().setAll(flat));
+    }
+
+    // Повторная сборка тех же уровней (например, после изменения файлов)
+    public void reloadLayers() throws IOException {
+        loadLayers(layers);
+    }
+
+    static Map<String, String> flatten(List<ConfigSource> sources) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        for (ConfigSource source : sources) {
+            result.putAll(source.load(Collections.unmodifiableMap(result)));
+        }
+        return result;
+    }
+
+    // Метод для загрузки настроек из файла
+    public void loadFromFile(String filePath) throws IOException {
+        Map<String, String> loaded = readFile(filePath);
+        update(builder -> builder.setAll(loaded));
+    }
+
+    // Разбор файла вида key=value
+    static Map<String, String> readFile(String filePath) throws IOException {
+        Map<String, String> loaded = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new FileReader(filePath));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("=");
+                if (parts.length == 2) {
+                    loaded.put(parts[0], parts[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return loaded;
+    }
+
+    // Метод для получения настройки по ключу
+    public String getSetting(String key) {
+        String value = current().get(key);
+        return value != null ? value : "Настройка не найдена";
+    }
+
+    // Типизированные значения текущего снимка; разбор выполняется один раз на снимок.
+    // Отсутствующая настройка без значения по умолчанию - NoSuchElementException,
+    // значение в неверном формате - IllegalArgumentException с именем ключа
+    public String getString(String key) {
+        return current().getString(key);
+    }
+
+    public int getInt(String key) {
+        return current().getInt(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return current().getInt(key, defaultValue);
+    }
+
+    public long getLong(String key) {
+        return current().getLong(key);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        return current().getLong(key, defaultValue);
+    }
+
+    public boolean getBoolean(String key) {
+        return current().getBoolean(key);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return current().getBoolean(key, defaultValue);
+    }
+
+    public Duration getDuration(String key) {
+        return current().getDuration(key);
+    }
+
+    public Duration getDuration(String key, Duration defaultValue) {
+        return current().getDuration(key, defaultValue);
+    }
+
+    public List<String> getList(String key) {
+        return current().getList(key);
+    }
+
+    public List<String> getList(String key, List<String> defaultValue) {
+        return current().getList(key, defaultValue);
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type) {
+        return current().getEnum(key, type);
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        return current().getEnum(key, type, defaultValue);
+    }
+
+    // Метод для изменения настройки
+    public void setSetting(String key, String value) {
+        update(builder -> builder.set(key, value));
+    }
+
+    // Метод для сохранения настроек в файл
+    public void saveToFile(String filePath) throws IOException {
+        writeAtomically(Paths.get(filePath), snapshot.asMap());
+    }
+
+    // Содержимое файла для writeAtomically
+    interface FileContents {
+        void writeTo(BufferedWriter writer) throws IOException;
+    }
+
+    // Запись во временный файл, сброс на диск и атомарное переименование:
+    // после сбоя на месте файла остается либо старое, либо новое содержимое
+    static void writeAtomically(Path file, Map<String, String> settings) throws IOException {
+        writeAtomically(file, Charset.defaultCharset(), writer -> {
+            for (Map.Entry<String, String> entry : settings.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue());
+                writer.newLine();
+            }
+        });
+    }
+
+    static void writeAtomically(Path file, Charset charset, FileContents contents) throws IOException {
+        Path temp = Paths.get(file + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp.toFile());
+        try {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, charset));
+            contents.writeTo(writer);
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // Сброс каталога, чтобы переименование тоже пережило сбой (не везде поддерживается)
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Каталог нельзя открыть на этой платформе
+        }
+    }
+}
+
+// Источник настроек для многоуровневой конфигурации.
+// lower - настройки, уже собранные из источников с меньшим приоритетом
+// (по ним переменные окружения сопоставляются с именами ключей).
+interface ConfigSource {
+    Map<String, String> load(Map<String, String> lower) throws IOException;
+
+    // Встроенные значения по умолчанию
+    static ConfigSource defaults(Map<String, String> values) {
+        Map<String, String> copy = new HashMap<>(values);
+        return lower -> copy;
+    }
+
+    // Файл вида key=value; отсутствующий файл - ошибка
+    static ConfigSource file(String filePath) {
+        return lower -> ConfigurationManager.readFile(filePath);
+    }
+
+    // Файл, которого может не быть (например, локальные переопределения)
+    static ConfigSource optionalFile(String filePath) {
+        return lower -> Files.exists(Paths.get(filePath)) ? ConfigurationManager.readFile(filePath) : new HashMap<>();
+    }
+
+    // Переменные окружения с префиксом: APP_DB_URL при префиксе "APP_" задает
+    // уже известный ключ db.url (или DB_URL, db-url); новые ключи - в виде db.url
+    static ConfigSource environment(String prefix) {
+        return lower -> fromEnvironment(System.getenv(), prefix, lower);
+    }
+
+    // Системные свойства с префиксом: -Dapp.db.url=... при префиксе "app." задает ключ db.url
+    static ConfigSource systemProperties(String prefix) {
+        return lower -> {
+            Map<String, String> values = new HashMap<>();
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                    values.put(name.substring(prefix.length()), System.getProperty(name));
+                }
+            }
+            return values;
+        };
+    }
+
+    static Map<String, String> fromEnvironment(Map<String, String> environment, String prefix, Map<String, String> lower) {
+        Map<String, String> known = new HashMap<>();
+        for (String key : lower.keySet()) {
+            known.put(environmentName(key), key);
+        }
+        Map<String, String> values = new HashMap<>();
+        for (Map.Entry<String, String> variable : environment.entrySet()) {
+            String name = variable.getKey();
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                String suffix = name.substring(prefix.length());
+                String key = known.getOrDefault(environmentName(suffix), suffix.toLowerCase().replace('_', '.'));
+                values.put(key, variable.getValue());
+            }
+        }
+        return values;
+    }
+
+    // Имя ключа в виде переменной окружения: db.url -> DB_URL
+    static String environmentName(String key) {
+        return key.toUpperCase().replace('.', '_').replace('-', '_');
+    }
+}
+
+// Двоичный формат настроек для больших наборов ключей, читаемый через
+// отображение файла в память. Объекты для ключей не создаются: поиск
+// вычисляет хэш ключа, по минимальной совершенной хэш-функции
+// (хэширование со смещением: сначала корзина, затем затравка корзины)
+// находит единственную ячейку и сравнивает ключ прямо в отображенной памяти.
+// Файл: заголовок (магическое число, версия, число ключей n, число корзин b),
+// затравки корзин (b int), смещения записей по ячейкам (n int),
+// записи: длина ключа в символах, ключ (UTF-16), длина значения, значение (UTF-8).
+final class CompiledConfig {
+    private static final int MAGIC = 0x43464742;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int KEYS_PER_BUCKET = 4;
+    private static final int MAX_SEED = 10_000_000;
+
+    private final Path file;
+    private final long fileSize;        // размер и время изменения файла при открытии:
+    private final long modifiedMillis;  // по ним журнал узнает, что файл переписан
+    private final MappedByteBuffer data;
+    private final int count;
+    private final int buckets;
+    private final int slotsStart;
+
+    private CompiledConfig(Path file, long modifiedMillis, MappedByteBuffer data) throws IOException {
+        this.file = file;
+        this.fileSize = data.limit();
+        this.modifiedMillis = modifiedMillis;
+        this.data = data;
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException("Файл не является двоичным файлом настроек");
+        }
+        if (data.getInt(4) != VERSION) {
+            throw new IOException("Неподдерживаемая версия двоичного файла настроек: " + data.getInt(4));
+        }
+        this.count = data.getInt(8);
+        this.buckets = data.getInt(12);
+        this.slotsStart = HEADER_SIZE + 4 * buckets;
+    }
+
+    public static CompiledConfig open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Двоичный файл настроек больше 2 ГБ: " + file);
+            }
+            // Отображение остается действительным после закрытия канала
+            long modifiedMillis = Files.getLastModifiedTime(file).toMillis();
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CompiledConfig(file.toAbsolutePath(), modifiedMillis, data);
+        }
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    // Отметка версии файла "размер:время изменения"
+    public String stamp() {
+        return fileSize + ":" + modifiedMillis;
+    }
 
-    // Приватный конструктор
-    private ConfigurationManager() {
-        settings = new HashMap<>();
+    public int size() {
+        return count;
     }
 
-    // Метод для получения единственного экземпляра
-    public static ConfigurationManager getInstance() {
-        if (instance == null) {
-            synchronized (lock) {
-                if (instance == null) {
-                    instance = new ConfigurationManager();
+    // Значение или null
+    public String get(String key) {
+        if (count == 0) {
+            return null;
+        }
+        long hash = hash(key);
+        int seed = data.getInt(HEADER_SIZE + 4 * bucket(hash, buckets));
+        int entry = data.getInt(slotsStart + 4 * slot(hash, seed, count));
+        int keyLength = data.getInt(entry);
+        if (keyLength != key.length()) {
+            return null;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (data.getChar(entry + 4 + 2 * i) != key.charAt(i)) {
+                return null;
+            }
+        }
+        int valueStart = entry + 4 + 2 * keyLength;
+        byte[] value = new byte[data.getInt(valueStart)];
+        data.get(valueStart + 4, value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    // Обход всех настроек (для сохранения и сравнения снимков)
+    public void forEach(BiConsumer<String, String> consumer) {
+        for (int i = 0; i < count; i++) {
+            int entry = data.getInt(slotsStart + 4 * i);
+            char[] key = new char[data.getInt(entry)];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = data.getChar(entry + 4 + 2 * j);
+            }
+            int valueStart = entry + 4 + 2 * key.length;
+            byte[] value = new byte[data.getInt(valueStart)];
+            data.get(valueStart + 4, value);
+            consumer.accept(new String(key), new String(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    // Построение двоичного файла; файл заменяется атомарно
+    public static void compile(Map<String, String> settings, Path file) throws IOException {
+        int n = settings.size();
+        String[] keys = settings.keySet().toArray(new String[0]);
+        long[] hashes = new long[n];
+        int b = Math.max(1, (n + KEYS_PER_BUCKET - 1) / KEYS_PER_BUCKET);
+        int[] bucketSizes = new int[b + 1];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(keys[i]);
+            bucketSizes[bucket(hashes[i], b) + 1]++;
+        }
+        // Ключи, сгруппированные по корзинам: members[bucketStart[k] .. bucketStart[k + 1])
+        int[] bucketStart = new int[b + 1];
+        for (int k = 0; k < b; k++) {
+            bucketStart[k + 1] = bucketStart[k] + bucketSizes[k + 1];
+        }
+        int[] members = new int[n];
+        int[] filled = new int[b];
+        for (int i = 0; i < n; i++) {
+            int k = bucket(hashes[i], b);
+            members[bucketStart[k] + filled[k]++] = i;
+        }
+        // Большие корзины размещаются первыми, пока свободных ячеек много
+        Integer[] order = new Integer[b];
+        for (int k = 0; k < b; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (x, y) -> (bucketStart[y + 1] - bucketStart[y]) - (bucketStart[x + 1] - bucketStart[x]));
+        int[] seeds = new int[b];
+        int[] keyAtSlot = new int[n];
+        Arrays.fill(keyAtSlot, -1);
+        int[] candidate = new int[KEYS_PER_BUCKET * 8];
+        for (int k : order) {
+            int from = bucketStart[k];
+            int size = bucketStart[k + 1] - from;
+            if (size == 0) {
+                continue;
+            }
+            if (candidate.length < size) {
+                candidate = new int[size];
+            }
+            int seed = 0;
+            while (!fits(hashes, members, from, size, seed, keyAtSlot, candidate)) {
+                if (++seed > MAX_SEED) {
+                    throw new IOException("Не удалось построить индекс двоичного файла настроек");
                 }
             }
+            seeds[k] = seed;
+            for (int j = 0; j < size; j++) {
+                keyAtSlot[candidate[j]] = members[from + j];
+            }
         }
-        return instance;
+        write(file, keys, settings, seeds, keyAtSlot);
     }
 
-    // Метод для загрузки настроек из файла
-    public void loadFromFile(String filePath) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            String[] parts = line.split("=");
-            if (parts.length == 2) {
-                settings.put(parts[0], parts[1]);
+    // Попадают ли все ключи корзины в разные свободные ячейки при данной затравке
+    private static boolean fits(long[] hashes, int[] members, int from, int size, int seed,
+                                int[] keyAtSlot, int[] candidate) {
+        for (int j = 0; j < size; j++) {
+            int slot = slot(hashes[members[from + j]], seed, keyAtSlot.length);
+            if (keyAtSlot[slot] >= 0) {
+                return false;
+            }
+            for (int other = 0; other < j; other++) {
+                if (candidate[other] == slot) {
+                    return false;
+                }
             }
+            candidate[j] = slot;
         }
-        reader.close();
+        return true;
     }
 
-    // Метод для получения настройки по ключу
-    public String getSetting(String key) {
-        return settings.getOrDefault(key, "Настройка не найдена");
+    private static void write(Path file, String[] keys, Map<String, String> settings, int[] seeds,
+                              int[] keyAtSlot) throws IOException {
+        int n = keyAtSlot.length;
+        byte[][] values = new byte[n][];
+        long offset = HEADER_SIZE + 4L * seeds.length + 4L * n;
+        int[] entryOffsets = new int[n];
+        for (int slot = 0; slot < n; slot++) {
+            String key = keys[keyAtSlot[slot]];
+            values[slot] = settings.get(key).getBytes(StandardCharsets.UTF_8);
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Настройки не помещаются в двоичный файл (больше 2 ГБ)");
+            }
+            entryOffsets[slot] = (int) offset;
+            offset += 8L + 2L * key.length() + values[slot].length;
+        }
+        Path temp = Paths.get(file + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp.toFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(seeds.length);
+            for (int seed : seeds) {
+                out.writeInt(seed);
+            }
+            for (int entryOffset : entryOffsets) {
+                out.writeInt(entryOffset);
+            }
+            for (int slot = 0; slot < n; slot++) {
+                String key = keys[keyAtSlot[slot]];
+                out.writeInt(key.length());
+                out.writeChars(key);
+                out.writeInt(values[slot].length);
+                out.write(values[slot]);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
-    // Метод для изменения настройки
-    public void setSetting(String key, String value) {
-        settings.put(key, value);
+    // FNV-1a по символам ключа с перемешиванием битов
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
     }
 
-    // Метод для сохранения настроек в файл
-    public void saveToFile(String filePath) throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter(filePath));
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static int bucket(long hash, int buckets) {
+        return (int) Math.floorMod(hash, (long) buckets);
+    }
+
+    private static int slot(long hash, int seed, int slots) {
+        return (int) Math.floorMod(mix(hash + seed * 0x9E3779B97F4A7C15L), (long) slots);
+    }
+}
+
+// Общая для процессов одной машины область настроек в отображенном файле
+// (лучше всего в /dev/shm). Один процесс-писатель публикует все настройки
+// целиком, читатели замечают новую версию одним чтением из памяти и
+// копируют данные без системных вызовов и разбора текста.
+// Согласованность обеспечивает счетчик последовательности (seqlock):
+// писатель делает его нечетным на время записи и четным после нее,
+// читатель повторяет чтение, если счетчик был нечетным или изменился.
+// Раскладка: магическое число, версия формата, емкость данных (int),
+// резерв, счетчик (long, выровнен по 8), длина данных (int), данные.
+// Настройки поверх двоичного файла (CompiledConfig) публикуются ссылкой на файл
+// и только изменениями поверх него: запись одного ключа не кодирует весь файл.
+// Данные: путь и отметка двоичного файла (пустые - его нет), число пар,
+// пары ключ-значение; длина значения -1 - ключ файла удален.
+// Счетчик 0 или длина NO_DATA - публикации еще не было (или она прервана
+// падением писателя): читатели остаются на прежних настройках.
+final class SharedConfigRegion implements Closeable {
+    private static final int MAGIC = 0x43464753;
+    private static final int VERSION = 2;
+    private static final int SEQUENCE_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 24;
+    private static final int DATA_OFFSET = 32;
+    private static final int NO_DATA = -1;
+    private static final int MAX_READ_ATTEMPTS = 1000;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final FileChannel channel;
+    private final FileLock writerLock; // null у читателя
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    // Согласованная копия настроек и ее версия. При двоичном файле settings -
+    // изменения поверх него, удаленные ключи отмечены ConfigSnapshot.REMOVED
+    static final class Contents {
+        final long version;
+        final String compiledFile; // null - все настройки в settings
+        final String compiledStamp;
+        final Map<String, String> settings;
+
+        Contents(long version, String compiledFile, String compiledStamp, Map<String, String> settings) {
+            this.version = version;
+            this.compiledFile = compiledFile;
+            this.compiledStamp = compiledStamp;
+            this.settings = settings;
+        }
+    }
+
+    private SharedConfigRegion(FileChannel channel, FileLock writerLock, MappedByteBuffer buffer, int capacity) {
+        this.channel = channel;
+        this.writerLock = writerLock;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    // Открытие области для записи; писатель может быть только один
+    public static SharedConfigRegion openWriter(Path file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException("Общая область настроек уже открыта другим писателем: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + (long) capacity);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(8) != capacity) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+                buffer.putInt(LENGTH_OFFSET, NO_DATA);
+            }
+            long sequence = (long) LONGS.getVolatile(buffer, SEQUENCE_OFFSET);
+            if ((sequence & 1) != 0) {
+                // Прошлый писатель упал посреди записи: данные недописаны, до следующей
+                // публикации читатели видят "публикации нет" и остаются на прежних настройках
+                buffer.putInt(LENGTH_OFFSET, NO_DATA);
+                LONGS.setRelease(buffer, SEQUENCE_OFFSET, sequence + 1);
+            }
+            return new SharedConfigRegion(channel, lock, buffer, capacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static SharedConfigRegion openReader(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() < DATA_OFFSET) {
+                throw new IOException("Файл не является общей областью настроек: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Файл не является общей областью настроек: " + file);
+            }
+            int capacity = buffer.getInt(8);
+            if (capacity < 0 || DATA_OFFSET + (long) capacity > channel.size()) {
+                throw new IOException("Поврежден заголовок общей области настроек: " + file);
+            }
+            return new SharedConfigRegion(channel, null, buffer, capacity);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Текущая версия: одно чтение из общей памяти
+    public long version() {
+        return (long) LONGS.getAcquire(buffer, SEQUENCE_OFFSET);
+    }
+
+    // Публикация всех настроек; читатели видят либо прежние, либо новые целиком
+    public void publish(ConfigSnapshot snapshot) throws IOException {
+        publish(prepare(snapshot));
+    }
+
+    // Кодирование с проверкой размера, без изменения области
+    public byte[] prepare(ConfigSnapshot snapshot) throws IOException {
+        byte[] data = encode(snapshot);
+        if (data.length > capacity) {
+            throw new IOException("Настройки (" + data.length + " байт) не помещаются в общую область (" + capacity + " байт)");
+        }
+        return data;
+    }
+
+    // Публикация данных, полученных от prepare
+    public synchronized void publish(byte[] data) {
+        long sequence = (long) LONGS.getOpaque(buffer, SEQUENCE_OFFSET);
+        LONGS.setOpaque(buffer, SEQUENCE_OFFSET, sequence + 1);
+        VarHandle.storeStoreFence();
+        buffer.putInt(LENGTH_OFFSET, data.length);
+        buffer.put(DATA_OFFSET, data);
+        LONGS.setRelease(buffer, SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    // Согласованная копия или null: публикации нет, данные повреждены
+    // или писатель не закончил запись за несколько попыток
+    public Contents read() {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long before = (long) LONGS.getAcquire(buffer, SEQUENCE_OFFSET);
+            if (before == 0) {
+                return null;
+            }
+            if ((before & 1) == 0) {
+                int length = buffer.getInt(LENGTH_OFFSET);
+                byte[] data = null;
+                if (length >= 0 && length <= capacity) {
+                    data = new byte[length];
+                    buffer.get(DATA_OFFSET, data);
+                }
+                VarHandle.loadLoadFence();
+                long after = (long) LONGS.getOpaque(buffer, SEQUENCE_OFFSET);
+                // Данные разбираются только после проверки: посреди записи там может быть что угодно
+                if (before == after) {
+                    return data != null ? decode(before, data) : null;
+                }
+            }
+            Thread.onSpinWait();
+        }
+        return null;
+    }
+
+    private static byte[] encode(ConfigSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CompiledConfig compiled = snapshot.compiled();
+        writeString(out, compiled != null ? compiled.file().toString() : "");
+        writeString(out, compiled != null ? compiled.stamp() : "");
+        Map<String, String> settings = snapshot.overlay();
+        out.writeInt(settings.size());
         for (Map.Entry<String, String> entry : settings.entrySet()) {
-            writer.write(entry.getKey() + "=" + entry.getValue());
-            writer.newLine();
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    // ConfigSnapshot.REMOVED записывается длиной -1
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        if (text == ConfigSnapshot.REMOVED) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // null - данные не в формате encode (все длины проверяются до выделения памяти)
+    private static Contents decode(long version, byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        String compiledFile = readString(in, false);
+        String compiledStamp = compiledFile != null ? readString(in, false) : null;
+        if (compiledStamp == null || in.remaining() < 4) {
+            return null;
+        }
+        boolean overlay = !compiledFile.isEmpty();
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / 8) {
+            return null;
+        }
+        Map<String, String> settings = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = readString(in, false);
+            String value = key != null ? readString(in, overlay) : null;
+            if (value == null) {
+                return null;
+            }
+            settings.put(key, value);
+        }
+        if (in.hasRemaining()) {
+            return null;
+        }
+        return overlay ? new Contents(version, compiledFile, compiledStamp, settings)
+                : new Contents(version, null, null, settings);
+    }
+
+    // removable - длина -1 читается как ConfigSnapshot.REMOVED
+    private static String readString(ByteBuffer in, boolean removable) {
+        if (in.remaining() < 4) {
+            return null;
+        }
+        int length = in.getInt();
+        if (length == -1 && removable) {
+            return ConfigSnapshot.REMOVED;
+        }
+        if (length < 0 || length > in.remaining()) {
+            return null;
+        }
+        String text = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+
+    public void close() throws IOException {
+        if (writerLock != null) {
+            writerLock.release();
+        }
+        channel.close();
+    }
+}
+
+// Изменение одной настройки: oldValue == null - добавлена, newValue == null - удалена
+final class ConfigChange {
+    private final String key;
+    private final String oldValue;
+    private final String newValue;
+
+    ConfigChange(String key, String oldValue, String newValue) {
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getOldValue() {
+        return oldValue;
+    }
+
+    public String getNewValue() {
+        return newValue;
+    }
+
+    // Изменения между двумя снимками среди ключей keys, в порядке ключей
+    static List<ConfigChange> diff(ConfigSnapshot before, ConfigSnapshot after, Collection<String> keys) {
+        List<ConfigChange> changes = new ArrayList<>();
+        for (String key : keys) {
+            String old = before.get(key);
+            String current = after.get(key);
+            if (!Objects.equals(old, current)) {
+                changes.add(new ConfigChange(key, old, current));
+            }
+        }
+        changes.sort(Comparator.comparing(ConfigChange::getKey));
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        return key + ": " + oldValue + " -> " + newValue;
+    }
+}
+
+// Слежение за файлом настроек: после изменения файла и паузы debounceMs
+// (редакторы и скрипты часто пишут файл в несколько приемов) файл
+// перечитывается, и менеджер получает разницу с прошлой загрузкой.
+class ConfigWatcher implements Closeable {
+    private final ConfigurationManager manager;
+    private final Path file;
+    private final long debounceMs;
+    private final WatchService watcher;
+    private final ScheduledExecutorService scheduler;
+    private final Thread thread;
+    private ScheduledFuture<?> pendingReload;
+    private Set<String> fileKeys = new HashSet<>(); // ключи, пришедшие из файла при прошлой загрузке
+
+    ConfigWatcher(ConfigurationManager manager, Path file, long debounceMs) throws IOException {
+        this.manager = manager;
+        this.file = file.toAbsolutePath();
+        this.debounceMs = debounceMs;
+        reload();
+        watcher = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread reloadThread = new Thread(r, "config-reload");
+            reloadThread.setDaemon(true);
+            return reloadThread;
+        });
+        thread = new Thread(this::watchLoop, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object changed = event.context();
+                    // OVERFLOW без имени файла - перечитываем на всякий случай
+                    if (changed == null || file.getFileName().equals(changed)) {
+                        scheduleReload();
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Слежение остановлено
+        }
+    }
+
+    // Каждое новое событие откладывает перечитывание еще на debounceMs
+    private synchronized void scheduleReload() {
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        pendingReload = scheduler.schedule(() -> {
+            try {
+                reload();
+            } catch (IOException e) {
+                // Файл мог быть временно удален при замене: остаются прежние настройки
+                System.err.println("Не удалось перечитать настройки " + file + ": " + e.getMessage());
+            }
+        }, debounceMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Ключи, удаленные из файла, удаляются и из настроек; остальные заменяются
+    private synchronized void reload() throws IOException {
+        Map<String, String> loaded = ConfigurationManager.readFile(file.toString());
+        Set<String> removed = new HashSet<>(fileKeys);
+        removed.removeAll(loaded.keySet());
+        manager.update(builder -> {
+            for (String key : removed) {
+                builder.remove(key);
+            }
+            builder.setAll(loaded);
+        });
+        fileKeys = new HashSet<>(loaded.keySet());
+    }
+
+    public void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+        scheduler.shutdownNow();
+    }
+}
+
+// Журнал изменений настроек. Каждое изменение дописывается в <файл>.journal
+// одной строкой "crc<TAB>+ключ=значение" или "crc<TAB>-ключ" и сбрасывается
+// на диск; сам файл настроек переписывается только при сжатии журнала.
+// Загрузка двоичного файла настроек записывается строкой "crc<TAB>@путь=размер:время":
+// все прежние настройки заменяются содержимым этого файла. Файл, переписанный
+// после записи (другие размер или время изменения), при восстановлении не применяется.
+// Перевод строки, '\r', '\' и '=' в ключах и значениях экранируются через '\'.
+// Сжатие: журнал переименовывается в <файл>.journal.compacting (новые записи
+// идут в новый журнал), снимок пишется во временный файл записями того же
+// формата после строки SNAPSHOT_HEADER, сбрасывается на диск и атомарно
+// заменяет файл настроек, после чего старый журнал удаляется. Файл настроек
+// без этой строки (еще не сжимавшийся) читается как обычный файл key=value.
+// При запуске применяются файл, недоделанный журнал сжатия и журнал;
+// оборванная при сбое последняя запись отбрасывается, запись с неверной
+// контрольной суммой пропускается, а следующие за ней применяются.
+class ConfigJournal implements Closeable {
+    private static final String SNAPSHOT_HEADER = "# config journal snapshot";
+
+    private final Path settingsFile;
+    private final Path journalFile;
+    private final Path compactingFile;
+    private final int compactThreshold;
+    private final ExecutorService compactor;
+    private FileChannel channel;
+    private int records;
+    private volatile boolean compacting;
+    private CompiledConfig restoredCompiled; // двоичный файл последней записи "@путь" при восстановлении
+
+    ConfigJournal(Path settingsFile, int compactThreshold) {
+        this.settingsFile = settingsFile.toAbsolutePath();
+        this.journalFile = Paths.get(this.settingsFile + ".journal");
+        this.compactingFile = Paths.get(this.settingsFile + ".journal.compacting");
+        this.compactThreshold = compactThreshold;
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "config-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Восстановление настроек и открытие журнала для записи. Если журнал ссылается
+    // на двоичный файл (restoredCompiled), результат - изменения поверх него,
+    // удаленные ключи файла отмечены ConfigSnapshot.REMOVED
+    Map<String, String> replay() throws IOException {
+        Map<String, String> settings = new HashMap<>();
+        if (isSnapshot(settingsFile)) {
+            applyRecords(settingsFile, settings);
+        } else if (Files.exists(settingsFile)) {
+            settings.putAll(ConfigurationManager.readFile(settingsFile.toString()));
+        }
+        for (Path file : Arrays.asList(compactingFile, journalFile)) {
+            if (Files.exists(file)) {
+                long validEnd = applyRecords(file, settings);
+                try (FileChannel journal = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    journal.truncate(validEnd);
+                }
+            }
+        }
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        return settings;
+    }
+
+    CompiledConfig restoredCompiled() {
+        return restoredCompiled;
+    }
+
+    // Файл настроек, записанный сжатием журнала
+    private static boolean isSnapshot(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return SNAPSHOT_HEADER.equals(reader.readLine());
+        } catch (CharacterCodingException e) {
+            return false; // обычный файл настроек в другой кодировке
+        }
+    }
+
+    // Применение записей файла; возвращает конец последней полной строки.
+    // Ошибка чтения пробрасывается: иначе журнал был бы обрезан до нуля
+    private long applyRecords(Path file, Map<String, String> settings) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            String record = new String(data, start, i - start, StandardCharsets.UTF_8);
+            if (start == 0 && record.equals(SNAPSHOT_HEADER)) {
+                start = i + 1;
+                continue;
+            }
+            int tab = record.indexOf('\t');
+            String body = tab < 0 ? "" : record.substring(tab + 1);
+            int separator = body.startsWith("+") ? separatorIndex(body) : 0;
+            if (tab < 0 || separator < 0 || body.isEmpty() || "+-@".indexOf(body.charAt(0)) < 0
+                    || !Long.toHexString(checksum(body)).equals(record.substring(0, tab))) {
+                System.err.println("Журнал настроек " + file + ": пропущена поврежденная запись с позиции " + start);
+            } else if (body.startsWith("@")) {
+                int stamp = separatorIndex(body);
+                if (stamp < 0) {
+                    System.err.println("Журнал настроек " + file + ": ссылка на двоичный файл без отметки версии");
+                } else {
+                    replaceWithCompiled(Paths.get(unescape(body.substring(1, stamp))), body.substring(stamp + 1),
+                            settings);
+                }
+            } else if (body.startsWith("+")) {
+                settings.put(unescape(body.substring(1, separator)), unescape(body.substring(separator + 1)));
+            } else {
+                String key = unescape(body.substring(1));
+                if (restoredCompiled != null && restoredCompiled.get(key) != null) {
+                    settings.put(key, ConfigSnapshot.REMOVED);
+                } else {
+                    settings.remove(key);
+                }
+            }
+            start = i + 1;
+        }
+        return start;
+    }
+
+    // Запись "@путь=отметка": прежние настройки заменяются двоичным файлом;
+    // пропавший или переписанный с тех пор файл - запись пропускается
+    private void replaceWithCompiled(Path compiledFile, String stamp, Map<String, String> settings) {
+        try {
+            CompiledConfig compiled = CompiledConfig.open(compiledFile);
+            if (!compiled.stamp().equals(stamp)) {
+                System.err.println("Двоичный файл настроек " + compiledFile + " изменился после записи в журнал ("
+                        + stamp + " -> " + compiled.stamp() + "), ссылка пропущена");
+                return;
+            }
+            restoredCompiled = compiled;
+            settings.clear();
+        } catch (IOException e) {
+            System.err.println("Не удалось открыть двоичный файл настроек из журнала " + compiledFile + ": "
+                    + e.getMessage());
+        }
+    }
+
+    // Перевод строки разделяет записи, '=' - ключ и значение
+    private static String escape(String text) {
+        StringBuilder result = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = c == '\\' ? "\\\\" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : c == '=' ? "\\=" : null;
+            if (replacement != null && result == null) {
+                result = new StringBuilder(text.length() + 8).append(text, 0, i);
+            }
+            if (result != null) {
+                if (replacement != null) {
+                    result.append(replacement);
+                } else {
+                    result.append(c);
+                }
+            }
+        }
+        return result == null ? text : result.toString();
+    }
+
+    // Неизвестная последовательность (запись старого формата без экранирования) остается как есть
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            char next = i + 1 < text.length() ? text.charAt(i + 1) : 0;
+            if (c == '\\' && (next == '\\' || next == 'n' || next == 'r' || next == '=')) {
+                result.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+                i++;
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    // Первый неэкранированный '=' в записи "+ключ=значение" или -1
+    private static int separatorIndex(String body) {
+        for (int i = 1; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '=') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    // Запись изменений со сбросом на диск (вызывается под блокировкой изменений менеджера);
+    // true - журнал пора сжать
+    boolean append(List<ConfigChange> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return false;
+        }
+        StringBuilder text = new StringBuilder();
+        for (ConfigChange change : changes) {
+            appendRecord(text, change.getKey(), change.getNewValue());
+        }
+        return write(text, changes.size());
+    }
+
+    // Замена всех настроек двоичным файлом и изменения поверх него одной порцией;
+    // true - журнал пора сжать
+    boolean appendReplacement(CompiledConfig compiled, Map<String, String> overlay) throws IOException {
+        StringBuilder text = new StringBuilder();
+        String body = compiledBody(compiled);
+        text.append(Long.toHexString(checksum(body))).append('\t').append(body).append('\n');
+        overlay.forEach((key, value) -> appendRecord(text, key, value == ConfigSnapshot.REMOVED ? null : value));
+        return write(text, 1 + overlay.size());
+    }
+
+    // value == null - удаление ключа
+    private static void appendRecord(StringBuilder text, String key, String value) {
+        String body = recordBody(key, value);
+        text.append(Long.toHexString(checksum(body))).append('\t').append(body).append('\n');
+    }
+
+    private static String compiledBody(CompiledConfig compiled) {
+        return "@" + escape(compiled.file().toString()) + "=" + compiled.stamp();
+    }
+
+    private static String recordBody(String key, String value) {
+        return value != null ? "+" + escape(key) + "=" + escape(value) : "-" + escape(key);
+    }
+
+    private static void writeRecord(BufferedWriter writer, String body) throws IOException {
+        writer.write(Long.toHexString(checksum(body)));
+        writer.write('\t');
+        writer.write(body);
+        writer.write('\n');
+    }
+
+    private boolean write(StringBuilder text, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        records += count;
+        return records >= compactThreshold && !compacting;
+    }
+
+    // Первая часть сжатия (под блокировкой изменений): новые записи пойдут в новый журнал.
+    // false - сжатие уже идет
+    boolean beginCompaction() throws IOException {
+        if (compacting) {
+            return false;
+        }
+        compacting = true;
+        channel.close();
+        if (Files.exists(compactingFile)) {
+            // Прошлое сжатие не завершилось: журнал дописывается к его записям
+            try (FileChannel target = FileChannel.open(compactingFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                target.write(ByteBuffer.wrap(Files.readAllBytes(journalFile)));
+                target.force(false);
+            }
+            Files.delete(journalFile);
+        } else {
+            Files.move(journalFile, compactingFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        records = 0;
+        return true;
+    }
+
+    // Вторая часть сжатия (без блокировки): запись снимка на место файла настроек
+    void finishCompaction(ConfigSnapshot snapshot) throws IOException {
+        try {
+            ConfigurationManager.writeAtomically(settingsFile, StandardCharsets.UTF_8, writer -> {
+                writer.write(SNAPSHOT_HEADER);
+                writer.write('\n');
+                if (snapshot.compiled() == null) {
+                    for (Map.Entry<String, String> entry : snapshot.asMap().entrySet()) {
+                        writeRecord(writer, recordBody(entry.getKey(), entry.getValue()));
+                    }
+                    return;
+                }
+                // Снимок поверх двоичного файла: ссылка на файл и только изменения поверх него
+                writeRecord(writer, compiledBody(snapshot.compiled()));
+                for (Map.Entry<String, String> entry : snapshot.overlay().entrySet()) {
+                    String value = entry.getValue();
+                    writeRecord(writer, recordBody(entry.getKey(), value == ConfigSnapshot.REMOVED ? null : value));
+                }
+            });
+            Files.deleteIfExists(compactingFile);
+        } finally {
+            compacting = false;
+        }
+    }
+
+    void submit(Runnable compaction) {
+        compactor.execute(compaction);
+    }
+
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        writer.close();
+        channel.close();
     }
 }
 
@@ -66,10 +1893,15 @@ interface IReportBuilder {
     Report getReport();
 }
 
+// Части отчета хранятся исходными значениями; шаблоны оформления
+// (setTemplates) применяются только при выводе
 class Report {
     private String header;
     private String content;
     private String footer;
+    private HtmlTemplate headerTemplate; // null - часть выводится как есть
+    private HtmlTemplate contentTemplate;
+    private HtmlTemplate footerTemplate;
 
     public void setHeader(String header) {
         this.header = header;
@@ -83,9 +1915,47 @@ class Report {
         this.footer = footer;
     }
 
+    // Шаблоны с одним слотом для каждой части
+    public void setTemplates(HtmlTemplate header, HtmlTemplate content, HtmlTemplate footer) {
+        this.headerTemplate = header;
+        this.contentTemplate = content;
+        this.footerTemplate = footer;
+    }
+
+    // Вывод отчета по частям без сборки всего текста в одну строку
+    public void renderTo(Appendable out) throws IOException {
+        renderPart(out, headerTemplate, header);
+        out.append("\n");
+        renderPart(out, contentTemplate, content);
+        out.append("\n");
+        renderPart(out, footerTemplate, footer);
+    }
+
+    // Часть отчета: значение как есть или через шаблон с экранированием прямо в приемник
+    private static void renderPart(Appendable out, HtmlTemplate template, String value) throws IOException {
+        if (template == null) {
+            out.append(value);
+        } else {
+            template.render(out, value);
+        }
+    }
+
+    // Вывод в поток байтов через буфер кодировщика; поток не закрывается
+    public void renderTo(OutputStream out, Charset charset) throws IOException {
+        Writer writer = new OutputStreamWriter(out, charset);
+        renderTo(writer);
+        writer.flush();
+    }
+
     @Override
     public String toString() {
-        return header + "\n" + content + "\n" + footer;
+        StringBuilder result = new StringBuilder();
+        try {
+            renderTo(result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder не бросает IOException
+        }
+        return result.toString();
     }
 }
 
@@ -116,25 +1986,129 @@ class TextReportBuilder implements IReportBuilder {
     }
 }
 
+// Скомпилированный HTML-шаблон со слотами вида {{имя}}.
+// Шаблон разбирается один раз в список операций (литерал или слот)
+// и кэшируется; при выводе значения экранируются прямо в приемник,
+// без промежуточных строк.
+final class HtmlTemplate {
+    private static final ConcurrentHashMap<String, HtmlTemplate> CACHE = new ConcurrentHashMap<>();
+
+    private final String source;
+    private final String[] literals; // литерал перед каждым слотом и хвост шаблона
+    private final int[] slots;       // номер значения для каждого слота
+    private final List<String> names;
+
+    private HtmlTemplate(String source, String[] literals, int[] slots, List<String> names) {
+        this.source = source;
+        this.literals = literals;
+        this.slots = slots;
+        this.names = names;
+    }
+
+    // Получение шаблона из кэша или его компиляция
+    public static HtmlTemplate of(String source) {
+        return CACHE.computeIfAbsent(source, HtmlTemplate::compile);
+    }
+
+    private static HtmlTemplate compile(String source) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int position = 0;
+        int open;
+        while ((open = source.indexOf("{{", position)) >= 0) {
+            int close = source.indexOf("}}", open + 2);
+            if (close < 0) {
+                throw new IllegalArgumentException("Незакрытый слот в шаблоне: " + source);
+            }
+            String name = source.substring(open + 2, close).trim();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Пустое имя слота в шаблоне: " + source);
+            }
+            int index = names.indexOf(name);
+            if (index < 0) {
+                index = names.size();
+                names.add(name);
+            }
+            literals.add(source.substring(position, open));
+            slots.add(index);
+            position = close + 2;
+        }
+        literals.add(source.substring(position));
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new HtmlTemplate(source, literals.toArray(new String[0]), slotArray,
+                Collections.unmodifiableList(names));
+    }
+
+    // Имена слотов в порядке первого появления - в этом порядке передаются значения
+    public List<String> getNames() {
+        return names;
+    }
+
+    // Вывод шаблона с подстановкой экранированных значений
+    public void render(Appendable out, String... values) throws IOException {
+        if (values.length != names.size()) {
+            throw new IllegalArgumentException("Шаблон " + source + " ожидает значения " + names
+                    + ", передано: " + values.length);
+        }
+        for (int i = 0; i < slots.length; i++) {
+            out.append(literals[i]);
+            escape(out, values[slots[i]]);
+        }
+        out.append(literals[slots.length]);
+    }
+
+    // Экранирование: куски без спецсимволов копируются диапазоном целиком
+    public static void escape(Appendable out, CharSequence text) throws IOException {
+        if (text == null) {
+            text = "null";
+        }
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: continue;
+            }
+            out.append(text, start, i).append(replacement);
+            start = i + 1;
+        }
+        out.append(text, start, text.length());
+    }
+}
+
 class HtmlReportBuilder implements IReportBuilder {
+    private static final HtmlTemplate HEADER = HtmlTemplate.of("<h1>{{header}}</h1>");
+    private static final HtmlTemplate CONTENT = HtmlTemplate.of("<p>{{content}}</p>");
+    private static final HtmlTemplate FOOTER = HtmlTemplate.of("<footer>{{footer}}</footer>");
+
     private Report report;
 
+    // Значения хранятся в отчете как есть и экранируются при его выводе
     public HtmlReportBuilder() {
         this.report = new Report();
+        report.setTemplates(HEADER, CONTENT, FOOTER);
     }
 
     public IReportBuilder setHeader(String header) {
-        report.setHeader("<h1>" + header + "</h1>");
+        report.setHeader(header);
         return this;
     }
 
     public IReportBuilder setContent(String content) {
-        report.setContent("<p>" + content + "</p>");
+        report.setContent(content);
         return this;
     }
 
     public IReportBuilder setFooter(String footer) {
-        report.setFooter("<footer>" + footer + "</footer>");
+        report.setFooter(footer);
         return this;
     }
 
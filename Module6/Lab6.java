@@ -1,24 +1,585 @@
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 // Уровни логирования
 enum LogLevel {
     INFO, WARNING, ERROR
 }
 
-// Паттерн "Одиночка" для логгера
+// Событие логирования
+class LogEvent {
+    private final String loggerName;
+    private final long timestamp;
+    private final LogLevel level;
+    private final String message;
+
+    public LogEvent(long timestamp, LogLevel level, String message) {
+        this("", timestamp, level, message);
+    }
+
+    public LogEvent(String loggerName, long timestamp, LogLevel level, String message) {
+        this.loggerName = loggerName;
+        this.timestamp = timestamp;
+        this.level = level;
+        this.message = message;
+    }
+
+    // Имя логгера; "" - корневой
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    // Строка в формате файла логов
+    public String format() {
+        if (loggerName.isEmpty()) {
+            return new Date(timestamp) + " [" + level + "] " + message;
+        }
+        return new Date(timestamp) + " [" + level + "] " + loggerName + " - " + message;
+    }
+}
+
+// Интерфейс приемника логов
+interface LogAppender {
+    void append(LogEvent event) throws IOException;
+
+    // Запись пачки событий (по умолчанию - по одному)
+    default void appendBatch(List<LogEvent> events) throws IOException {
+        for (LogEvent event : events) {
+            append(event);
+        }
+    }
+
+    void close() throws IOException;
+}
+
+// Режим сброса логов на диск (fsync)
+enum Durability {
+    NONE,        // только запись в канал, сброс выполняет ОС
+    INTERVAL_MS, // сброс не реже одного раза в заданный интервал
+    EVERY_BATCH; // сброс после каждой групповой записи
+
+    // Разбор значения из файла настроек: none, interval-ms, every-batch
+    public static Durability fromConfig(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
+
+// Запись логов в файл через постоянно открытый FileChannel.
+// Одновременные записи объединяются в групповые коммиты: один поток
+// (лидер) пишет накопленные данные всех ожидающих потоков одним вызовом.
+// Сброс на диск задается режимом Durability.
+class FileLogAppender implements LogAppender {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // Итог записи одной группы; у каждой группы свой
+    private static class GroupResult {
+        boolean done;
+        IOException error;
+    }
+
+    private final String logFilePath;
+    private final Durability durability;
+    private final long fsyncIntervalMs;
+    private final Object commitLock = new Object();
+    private volatile FileChannel channel;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private GroupResult pendingResult = new GroupResult(); // итог группы pending
+    private boolean committing;
+    private boolean closed;
+    private volatile boolean unsynced;
+    private volatile long lastSyncTime = System.currentTimeMillis();
+    private ScheduledExecutorService syncTimer;
+
+    public FileLogAppender(String logFilePath) {
+        this(logFilePath, Durability.NONE, 0);
+    }
+
+    public FileLogAppender(String logFilePath, Durability durability, long fsyncIntervalMs) {
+        this.logFilePath = logFilePath;
+        this.durability = durability;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        if (durability == Durability.INTERVAL_MS && fsyncIntervalMs > 0) {
+            // Сброс хвоста, если после последней записи новых сообщений не было
+            syncTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "log-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncTimer.scheduleWithFixedDelay(this::syncIfDue, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void append(LogEvent event) throws IOException {
+        appendBatch(Collections.singletonList(event));
+    }
+
+    public void appendBatch(List<LogEvent> events) throws IOException {
+        // Кодирование выполняется вне блокировки
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(events.size() * 96);
+        for (LogEvent event : events) {
+            encoded.write(event.format().getBytes(StandardCharsets.UTF_8));
+            encoded.write(LINE_SEPARATOR);
+        }
+        commit(encoded);
+    }
+
+    // Добавление данных в текущую группу и ожидание ее записи
+    private void commit(ByteArrayOutputStream data) throws IOException {
+        byte[] group;
+        GroupResult result;
+        synchronized (commitLock) {
+            if (closed) {
+                throw new IOException("Файл логов закрыт: " + logFilePath);
+            }
+            data.writeTo(pending);
+            result = pendingResult;
+            while (committing && !result.done) {
+                waitForCommit();
+            }
+            if (result.done) {
+                // Данные записал другой поток
+                if (result.error != null) {
+                    throw result.error;
+                }
+                return;
+            }
+            // Этот поток становится лидером и пишет всю группу
+            committing = true;
+            group = takePending();
+        }
+        IOException error = null;
+        try {
+            writeGroup(group);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (commitLock) {
+            finishGroup(result, error);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Текущая группа уходит на запись, новые данные копятся в следующей (под commitLock)
+    private byte[] takePending() {
+        byte[] group = pending.toByteArray();
+        pending.reset();
+        pendingResult = new GroupResult();
+        return group;
+    }
+
+    private void finishGroup(GroupResult result, IOException error) {
+        result.done = true;
+        result.error = error;
+        committing = false;
+        commitLock.notifyAll();
+    }
+
+    // Прерванный поток перестает ждать, но его данные остаются в группе:
+    // их запишет следующий лидер или close()
+    private void waitForCommit() throws InterruptedIOException {
+        try {
+            commitLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Прервано ожидание записи логов");
+        }
+    }
+
+    // Запись группы; вызывается только лидером
+    private void writeGroup(byte[] group) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            // Канал мог закрыться из-за прерывания предыдущего лидера
+            channel = FileChannel.open(Paths.get(logFilePath), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(group);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        unsynced = true;
+        if (durability == Durability.EVERY_BATCH) {
+            sync();
+        } else if (durability == Durability.INTERVAL_MS
+                && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        unsynced = false;
+        channel.force(false);
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    // Вызывается таймером в режиме INTERVAL_MS
+    private void syncIfDue() {
+        try {
+            FileChannel current = channel;
+            if (unsynced && current != null && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs) {
+                unsynced = false;
+                current.force(false);
+                lastSyncTime = System.currentTimeMillis();
+            }
+        } catch (ClosedChannelException e) {
+            // Канал закрыт; данные сброшены при закрытии
+        } catch (IOException e) {
+            System.err.println("Ошибка сброса логов на диск: " + e.getMessage());
+        }
+    }
+
+    // Дожидается текущей записи, сам записывает оставшуюся группу,
+    // сбрасывает данные и закрывает канал; после этого запись отклоняется
+    public void close() throws IOException {
+        IOException error = null;
+        // Флаг прерывания снимается на время закрытия: иначе канал откажет в записи остатка
+        boolean interrupted = Thread.interrupted();
+        synchronized (commitLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            while (committing) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (pending.size() > 0) {
+                GroupResult result = pendingResult;
+                try {
+                    writeGroup(takePending());
+                } catch (IOException e) {
+                    error = e;
+                }
+                finishGroup(result, error);
+            }
+            if (syncTimer != null) {
+                syncTimer.shutdownNow();
+            }
+            if (channel != null) {
+                if (durability != Durability.NONE) {
+                    channel.force(false);
+                }
+                channel.close();
+                channel = null;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
+
+// Поведение при переполнении очереди асинхронного логгера
+enum OverflowPolicy {
+    BLOCK,       // ждать освобождения места
+    DROP_NEWEST, // отбросить новое сообщение
+    DROP_OLDEST  // вытеснить самое старое сообщение
+}
+
+// Ограниченный кольцевой буфер: много писателей, один читатель
+class LogRingBuffer {
+    private final LogEvent[] slots;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long head; // следующая позиция для чтения
+    private long tail; // следующая позиция для записи
+    private long dropped;
+    private boolean closed; // после закрытия новые события не принимаются
+
+    public LogRingBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Размер буфера должен быть положительным: " + capacity);
+        }
+        this.slots = new LogEvent[capacity];
+        this.policy = policy;
+    }
+
+    // Добавление события; false, если событие было отброшено.
+    // В закрытый буфер события не добавляются (IllegalStateException)
+    public boolean offer(LogEvent event) throws InterruptedException {
+        lock.lock();
+        try {
+            while (tail - head == slots.length) {
+                checkOpen();
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    dropped++;
+                    return false;
+                } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                    slots[(int) (head % slots.length)] = null;
+                    head++;
+                    dropped++;
+                } else {
+                    notFull.await();
+                }
+            }
+            checkOpen();
+            slots[(int) (tail % slots.length)] = event;
+            tail++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Забирает до maxEvents событий, ожидая первое не дольше timeoutMs;
+    // -1 - буфер закрыт и пуст, событий больше не будет
+    public int drainTo(List<LogEvent> batch, int maxEvents, long timeoutMs) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (tail == head) {
+                if (closed) {
+                    return -1;
+                }
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int count = 0;
+            while (head < tail && count < maxEvents) {
+                int index = (int) (head % slots.length);
+                batch.add(slots[index]);
+                slots[index] = null;
+                head++;
+                count++;
+            }
+            notFull.signalAll();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Закрытие: принятые события еще можно забрать, новые отклоняются.
+    // false - буфер уже был закрыт
+    public boolean close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Буфер логов закрыт");
+        }
+    }
+}
+
+// Асинхронный приемник: log() только кладет событие в буфер,
+// фоновый поток пачками передает события основному приемнику
+class AsyncLogAppender implements LogAppender {
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private final LogAppender delegate;
+    private final LogRingBuffer buffer;
+    private final Thread writerThread;
+
+    public AsyncLogAppender(LogAppender delegate, int capacity, OverflowPolicy policy) {
+        this.delegate = delegate;
+        this.buffer = new LogRingBuffer(capacity, policy);
+        this.writerThread = new Thread(this::drainLoop, "async-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // После close() события отклоняются: основной приемник уже закрыт
+    public void append(LogEvent event) throws IOException {
+        try {
+            buffer.offer(event);
+        } catch (IllegalStateException e) {
+            throw new IOException("Асинхронный приемник логов закрыт");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Прервано ожидание места в буфере логов");
+        }
+    }
+
+    // Цикл фонового потока: до закрытия буфера и выборки всех принятых событий
+    private void drainLoop() {
+        List<LogEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            drain(batch, 100);
+        } catch (InterruptedException e) {
+            // Оставшиеся события допишет close()
+        }
+    }
+
+    private void drain(List<LogEvent> batch, long timeoutMs) throws InterruptedException {
+        int count;
+        while ((count = buffer.drainTo(batch, MAX_BATCH_SIZE, timeoutMs)) >= 0) {
+            if (count > 0) {
+                try {
+                    delegate.appendBatch(batch);
+                } catch (IOException | RuntimeException e) {
+                    // Фоновый поток продолжает работу: иначе BLOCK-производители ждали бы места вечно
+                    System.err.println("Ошибка записи логов: " + e);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    public int getQueueSize() {
+        return buffer.size();
+    }
+
+    public long getDroppedCount() {
+        return buffer.getDropped();
+    }
+
+    // Останавливает поток, дописав все принятые события; повторный вызов ничего не делает
+    public void close() throws IOException {
+        if (!buffer.close()) {
+            return;
+        }
+        // Пока фоновый поток пишет, основной приемник закрывать нельзя: ожидание
+        // продолжается и после прерывания, флаг прерывания восстанавливается в конце
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        // Если фоновый поток был прерван, остаток дописывается здесь
+        try {
+            drain(new ArrayList<>(MAX_BATCH_SIZE), 0);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+}
+
+// Паттерн "Одиночка" для логгера.
+// getInstance() возвращает корневой логгер; getLogger("a.b.c") - именованные
+// логгеры, образующие иерархию по точкам в имени. Уровень и приемники
+// наследуются от родителя и заранее сводятся в volatile-поля, поэтому
+// проверка уровня при логировании - одно сравнение.
 class Logger {
     private static Logger instance;
     private static Object lock = new Object();
-    private LogLevel currentLogLevel;
-    private String logFilePath;
+    private static final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+    private static final LogAppender[] NO_APPENDERS = new LogAppender[0];
+    // Доставка идет под общей блокировкой; замена приемника ждет исключительной,
+    // чтобы не закрыть приемник, которому другой поток еще передает событие
+    private static final ReentrantReadWriteLock delivery = new ReentrantReadWriteLock();
+
+    private final String name;
+    private final Logger parent;
+    private final List<Logger> children = new CopyOnWriteArrayList<>();
+    private final List<LogAppender> appenders = new CopyOnWriteArrayList<>();
+    private boolean additive = true;
+    private LogLevel currentLogLevel; // null - уровень берется у родителя
+    private volatile LogLevel effectiveLevel;
+    private volatile LogAppender[] effectiveAppenders = NO_APPENDERS;
+
+    private final MainSettings main; // null у именованных логгеров
+
+    // Настройки основного приемника. Основной приемник один на всю иерархию
+    // и подключен к корневому логгеру, поэтому настройки есть только у него;
+    // setLogFilePath и loadConfiguration любого логгера меняют именно их
+    private static final class MainSettings {
+        String logFilePath = "log.txt"; // Путь к файлу логов по умолчанию
+        boolean async;
+        int asyncBufferSize = 8192;
+        OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        Durability durability = Durability.NONE;
+        long fsyncIntervalMs = 1000;
+        LogAppender appender;
+    }
 
-    // Приватный конструктор
+    // Приватный конструктор корневого логгера
     private Logger() {
+        name = "";
+        parent = null;
         currentLogLevel = LogLevel.INFO;
-        logFilePath = "log.txt"; // Путь к файлу логов по умолчанию
+        main = new MainSettings();
+        main.appender = new FileLogAppender(main.logFilePath);
+        appenders.add(main.appender);
+        updateEffectiveSettings();
+        // Дописываем накопленные сообщения при завершении программы
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::closeAll));
+    }
+
+    // Приватный конструктор именованного логгера
+    private Logger(String name, Logger parent) {
+        this.name = name;
+        this.parent = parent;
+        this.main = null;
     }
 
     // Метод для получения единственного экземпляра
@@ -33,24 +594,194 @@ class Logger {
         return instance;
     }
 
-    // Метод для изменения уровня логирования
+    // Логгер с иерархическим именем ("db", "db.pool", ...); "" - корневой
+    public static Logger getLogger(String name) {
+        if (name == null || name.isEmpty()) {
+            return getInstance();
+        }
+        Logger logger = loggers.get(name);
+        if (logger != null) {
+            return logger;
+        }
+        Logger root = getInstance();
+        synchronized (lock) {
+            logger = loggers.get(name);
+            if (logger == null) {
+                int dot = name.lastIndexOf('.');
+                Logger parent = dot > 0 ? getLogger(name.substring(0, dot)) : root;
+                logger = new Logger(name, parent);
+                parent.children.add(logger);
+                logger.updateEffectiveSettings();
+                loggers.put(name, logger);
+            }
+            return logger;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Метод для изменения уровня логирования; null у именованного логгера - наследовать от родителя
     public void setLogLevel(LogLevel level) {
-        currentLogLevel = level;
+        if (level == null && parent == null) {
+            throw new IllegalArgumentException("У корневого логгера должен быть уровень");
+        }
+        synchronized (lock) {
+            currentLogLevel = level;
+            updateEffectiveSettings();
+        }
+    }
+
+    public LogLevel getEffectiveLevel() {
+        return effectiveLevel;
     }
 
-    // Метод для установки пути к файлу логов
+    // Метод для установки пути к файлу логов.
+    // Новый файл начинает использоваться сразу; ошибка закрытия прежнего
+    // приемника только выводится, как при закрытии логгеров
     public void setLogFilePath(String path) {
-        logFilePath = path;
+        Logger root = getInstance();
+        synchronized (root.main) {
+            root.main.logFilePath = path;
+            try {
+                root.reconfigure();
+            } catch (IOException e) {
+                System.err.println("Ошибка смены файла логов: " + e.getMessage());
+            }
+        }
+    }
+
+    // Добавление приемника только для этого логгера и его потомков
+    public void addAppender(LogAppender extra) {
+        synchronized (lock) {
+            appenders.add(extra);
+            updateEffectiveSettings();
+        }
+    }
+
+    public void removeAppender(LogAppender extra) {
+        synchronized (lock) {
+            appenders.remove(extra);
+            updateEffectiveSettings();
+        }
+    }
+
+    // false - сообщения не передаются приемникам родителей
+    public void setAdditive(boolean additive) {
+        synchronized (lock) {
+            this.additive = additive;
+            updateEffectiveSettings();
+        }
+    }
+
+    // Пересчет унаследованного уровня и приемников для логгера и всех потомков (под lock)
+    private void updateEffectiveSettings() {
+        effectiveLevel = currentLogLevel != null ? currentLogLevel : parent.effectiveLevel;
+        List<LogAppender> all = new ArrayList<>(appenders);
+        if (additive && parent != null) {
+            all.addAll(Arrays.asList(parent.effectiveAppenders));
+        }
+        effectiveAppenders = all.toArray(NO_APPENDERS);
+        for (Logger child : children) {
+            child.updateEffectiveSettings();
+        }
+    }
+
+    // Будет ли записано сообщение с данным уровнем
+    public boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= effectiveLevel.ordinal();
     }
 
     // Метод для логирования сообщений
     public void log(String message, LogLevel level) throws IOException {
-        if (level.ordinal() >= currentLogLevel.ordinal()) {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true));
-            writer.write(new Date() + " [" + level + "] " + message);
-            writer.newLine();
-            writer.close();
+        if (isEnabled(level)) {
+            LogEvent event = new LogEvent(name, System.currentTimeMillis(), level, message);
+            delivery.readLock().lock();
+            try {
+                for (LogAppender target : effectiveAppenders) {
+                    target.append(event);
+                }
+            } finally {
+                delivery.readLock().unlock();
+            }
+        }
+    }
+
+    // Метод для чтения настроек логгера из файла.
+    // Уровни отдельных логгеров задаются ключами вида LogLevel.db.pool=WARNING.
+    public void loadConfiguration(String configFilePath) throws IOException {
+        Logger root = getInstance();
+        MainSettings settings = root.main;
+        synchronized (settings) {
+            BufferedReader reader = new BufferedReader(new FileReader(configFilePath));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("=");
+                if (parts[0].equals("LogLevel")) {
+                    setLogLevel(LogLevel.valueOf(parts[1]));
+                } else if (parts[0].startsWith("LogLevel.")) {
+                    getLogger(parts[0].substring("LogLevel.".length())).setLogLevel(LogLevel.valueOf(parts[1]));
+                } else if (parts[0].equals("LogFilePath")) {
+                    settings.logFilePath = parts[1];
+                } else if (parts[0].equals("Async")) {
+                    settings.async = Boolean.parseBoolean(parts[1]);
+                } else if (parts[0].equals("AsyncBufferSize")) {
+                    settings.asyncBufferSize = Integer.parseInt(parts[1]);
+                } else if (parts[0].equals("OverflowPolicy")) {
+                    settings.overflowPolicy = OverflowPolicy.valueOf(parts[1]);
+                } else if (parts[0].equals("Durability")) {
+                    settings.durability = Durability.fromConfig(parts[1]);
+                } else if (parts[0].equals("FsyncIntervalMs")) {
+                    settings.fsyncIntervalMs = Long.parseLong(parts[1]);
+                }
+            }
+            reader.close();
+            root.reconfigure();
+        }
+    }
+
+    // Пересоздание основного приемника после изменения настроек (у корневого логгера)
+    private void reconfigure() throws IOException {
+        LogAppender next = new FileLogAppender(main.logFilePath, main.durability, main.fsyncIntervalMs);
+        if (main.async) {
+            next = new AsyncLogAppender(next, main.asyncBufferSize, main.overflowPolicy);
+        }
+        LogAppender previous;
+        synchronized (lock) {
+            previous = main.appender;
+            if (previous != null) {
+                appenders.remove(previous);
+            }
+            main.appender = next;
+            appenders.add(0, next);
+            updateEffectiveSettings();
+        }
+        if (previous != null) {
+            // Ожидание доставок, начатых до замены приемника
+            delivery.writeLock().lock();
+            delivery.writeLock().unlock();
+            previous.close();
+        }
+    }
+
+    // Закрытие приемников логгера с записью оставшихся сообщений
+    public void close() {
+        for (LogAppender target : appenders) {
+            try {
+                target.close();
+            } catch (IOException e) {
+                System.err.println("Ошибка закрытия логгера " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Закрытие всех логгеров при завершении программы
+    private static void closeAll() {
+        for (Logger logger : loggers.values()) {
+            logger.close();
         }
+        getInstance().close();
     }
 }
 
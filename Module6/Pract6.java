@@ -1,6 +1,66 @@
 import java.io.*;
-import java.util.Date;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 // Уровни логирования
 enum LogLevel {
@@ -9,80 +69,3941 @@ enum LogLevel {
     ERROR
 }
 
-// Паттерн "Одиночка" для логгера
+// Событие логирования.
+// Текст сообщения из шаблона собирается только при первом обращении.
+class LogEvent {
+    private final String loggerName;
+    private final long epochNanos;
+    private final LogLevel level;
+    private final String template;
+    private final Object[] args;
+    private String message;
+
+    public LogEvent(long epochNanos, LogLevel level, String message) {
+        this("", epochNanos, level, message, null);
+    }
+
+    public LogEvent(long epochNanos, LogLevel level, String template, Object[] args) {
+        this("", epochNanos, level, template, args);
+    }
+
+    public LogEvent(String loggerName, long epochNanos, LogLevel level, String template, Object[] args) {
+        this.loggerName = loggerName;
+        this.epochNanos = epochNanos;
+        this.level = level;
+        this.template = template;
+        this.args = args;
+        if (args == null || args.length == 0) {
+            this.message = template;
+        }
+    }
+
+    // Текущее время в наносекундах от начала эпохи
+    public static long currentEpochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    // Имя логгера; "" - корневой
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    // Время в миллисекундах
+    public long getTimestamp() {
+        return Math.floorDiv(epochNanos, 1_000_000L);
+    }
+
+    // Граница интервала в миллисекундах -> в наносекундах с насыщением:
+    // Long.MIN_VALUE/Long.MAX_VALUE (интервал без границы) не переполняются
+    public static long millisToNanos(long millis) {
+        if (millis <= Long.MIN_VALUE / 1_000_000L) {
+            return Long.MIN_VALUE;
+        }
+        if (millis >= Long.MAX_VALUE / 1_000_000L) {
+            return Long.MAX_VALUE;
+        }
+        return millis * 1_000_000L;
+    }
+
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+
+    public String getMessage() {
+        if (message == null) {
+            message = MessageTemplate.format(template, args);
+        }
+        return message;
+    }
+
+    // Строка в формате файла логов
+    public String format() {
+        StringBuilder line = new StringBuilder(64)
+                .append(LogTimestampFormatter.format(getTimestamp()))
+                .append(" [").append(level).append("] ");
+        if (!loggerName.isEmpty()) {
+            line.append(loggerName).append(" - ");
+        }
+        return line.append(getMessage()).toString();
+    }
+}
+
+// Подстановка аргументов в шаблон вида "Заказ {} оплачен за {} мс"
+class MessageTemplate {
+    public static String format(String template, Object[] args) {
+        if (template == null || args == null || args.length == 0) {
+            return template;
+        }
+        StringBuilder result = new StringBuilder(template.length() + args.length * 16);
+        int argIndex = 0;
+        int from = 0;
+        int slot;
+        while (argIndex < args.length && (slot = template.indexOf("{}", from)) >= 0) {
+            result.append(template, from, slot).append(args[argIndex++]);
+            from = slot + 2;
+        }
+        result.append(template, from, template.length());
+        return result.toString();
+    }
+}
+
+// Форматирование времени записи с кэшем: строка пересобирается
+// не чаще раза в миллисекунду, дата и время - раз в секунду
+class LogTimestampFormatter {
+    private static final DateTimeFormatter SECOND_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.").withZone(ZoneId.systemDefault());
+
+    // Неизменяемый снимок кэша, публикуется одной записью в volatile-поле
+    private static final class Cached {
+        final long second;
+        final String secondPrefix;
+        final long millis;
+        final String text;
+
+        Cached(long second, String secondPrefix, long millis, String text) {
+            this.second = second;
+            this.secondPrefix = secondPrefix;
+            this.millis = millis;
+            this.text = text;
+        }
+    }
+
+    private static volatile Cached cached = new Cached(Long.MIN_VALUE, "", Long.MIN_VALUE, "");
+
+    public static String format(long millis) {
+        Cached current = cached;
+        if (current.millis == millis) {
+            return current.text;
+        }
+        long second = Math.floorDiv(millis, 1000);
+        String prefix = current.second == second
+                ? current.secondPrefix
+                : SECOND_FORMAT.format(Instant.ofEpochMilli(second * 1000));
+        int ms = Math.floorMod(millis, 1000);
+        String text = prefix + (ms < 10 ? "00" : ms < 100 ? "0" : "") + ms;
+        cached = new Cached(second, prefix, millis, text);
+        return text;
+    }
+}
+
+// Интерфейс приемника логов
+interface LogAppender {
+    void append(LogEvent event) throws IOException;
+
+    // Запись пачки событий (по умолчанию - по одному)
+    default void appendBatch(List<LogEvent> events) throws IOException {
+        for (LogEvent event : events) {
+            append(event);
+        }
+    }
+
+    void close() throws IOException;
+}
+
+// Режим сброса логов на диск (fsync)
+enum Durability {
+    NONE,        // только запись в канал, сброс выполняет ОС
+    INTERVAL_MS, // сброс не реже одного раза в заданный интервал
+    EVERY_BATCH; // сброс после каждой групповой записи
+
+    // Разбор значения из файла настроек: none, interval-ms, every-batch
+    public static Durability fromConfig(String value) {
+        return valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
+
+// Настройки ротации логов
+class RotationPolicy {
+    public static final RotationPolicy NONE = new RotationPolicy(0, 0, 0, false, false);
+
+    private final long maxFileSize;     // байт; 0 - без ограничения
+    private final long intervalMs;      // длина временного окна; 0 - без ротации по времени
+    private final int maxHistory;       // сколько закрытых сегментов хранить; 0 - все
+    private final boolean compress;     // сжимать закрытые сегменты в gzip
+    private final boolean bloomFilter;  // строить фильтр Блума для поиска по закрытым сегментам
+
+    public RotationPolicy(long maxFileSize, long intervalMs, int maxHistory, boolean compress) {
+        this(maxFileSize, intervalMs, maxHistory, compress, false);
+    }
+
+    public RotationPolicy(long maxFileSize, long intervalMs, int maxHistory, boolean compress, boolean bloomFilter) {
+        this.maxFileSize = maxFileSize;
+        this.intervalMs = intervalMs;
+        this.maxHistory = maxHistory;
+        this.compress = compress;
+        this.bloomFilter = bloomFilter;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public int getMaxHistory() {
+        return maxHistory;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public boolean isBloomFilter() {
+        return bloomFilter;
+    }
+
+    // Нужна ли обработка закрытых сегментов в фоне
+    public boolean needsArchiving() {
+        return compress || maxHistory > 0 || bloomFilter;
+    }
+
+    // Начало временного окна, в которое попадает момент time
+    public long windowStart(long time) {
+        return intervalMs > 0 ? time - time % intervalMs : 0;
+    }
+
+    // Пора ли закрыть текущий файл
+    public boolean shouldRotate(long currentSize, long incomingBytes, long windowStart, long now) {
+        if (currentSize == 0) {
+            return false;
+        }
+        if (maxFileSize > 0 && currentSize + incomingBytes > maxFileSize) {
+            return true;
+        }
+        return intervalMs > 0 && windowStart(now) != windowStart;
+    }
+}
+
+// Фоновое сжатие закрытых сегментов и удаление старых.
+// Работает в одном потоке с минимальным приоритетом, чтобы не мешать log().
+class LogArchiver {
+    private final String logFilePath;
+    private final RotationPolicy policy;
+    private final ExecutorService executor;
+
+    public LogArchiver(String logFilePath, RotationPolicy policy) {
+        this.logFilePath = logFilePath;
+        this.policy = policy;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "log-archiver");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    // Постановка закрытого сегмента в очередь на обработку
+    public void archive(Path segment) {
+        if (policy.isBloomFilter()) {
+            // Фильтр от удаленного ранее сегмента с тем же номером не должен отсекать новый
+            try {
+                Files.deleteIfExists(LogBloomFilter.sidecarPath(segment));
+            } catch (IOException e) {
+                System.err.println("Ошибка удаления фильтра " + segment + ": " + e.getMessage());
+            }
+        }
+        executor.execute(() -> {
+            try {
+                if (policy.isBloomFilter()) {
+                    LogBloomFilter.build(segment);
+                }
+                if (policy.isCompress()) {
+                    compress(segment);
+                }
+                applyRetention(LogSegments.segmentIndex(logFilePath, segment));
+            } catch (IOException e) {
+                System.err.println("Ошибка архивации " + segment + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Сжатие во временный файл и переименование: недожатый архив не виден читателям
+    private void compress(Path segment) throws IOException {
+        Path target = Paths.get(segment + ".gz");
+        Path temp = Paths.get(segment + ".gz.tmp");
+        try (InputStream in = Files.newInputStream(segment);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(segment);
+        // Смещения индекса к сжатому файлу не применимы
+        Files.deleteIfExists(LogIndex.sidecarPath(segment));
+    }
+
+    // Удаление самых старых сегментов сверх maxHistory (не новее только что закрытого)
+    private void applyRetention(long closedIndex) throws IOException {
+        if (policy.getMaxHistory() <= 0) {
+            return;
+        }
+        List<Path> closed = new ArrayList<>();
+        for (Path file : LogSegments.list(logFilePath)) {
+            long index = LogSegments.segmentIndex(logFilePath, file);
+            if (index > 0 && index <= closedIndex) {
+                closed.add(file);
+            }
+        }
+        for (int i = 0; i < closed.size() - policy.getMaxHistory(); i++) {
+            Files.deleteIfExists(closed.get(i));
+            Files.deleteIfExists(LogIndex.sidecarPath(closed.get(i)));
+            Files.deleteIfExists(LogBloomFilter.sidecarPath(closed.get(i)));
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+// Запись логов в файл через постоянно открытый FileChannel.
+// Одновременные записи объединяются в групповые коммиты: один поток
+// (лидер) пишет накопленные данные всех ожидающих потоков одним вызовом.
+// Перед записью группы лидер при необходимости выполняет ротацию файла.
+class FileLogAppender implements LogAppender {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // Буфер, отдающий свое содержимое без копирования.
+    // Помнит границы, время и уровень каждой строки для индекса.
+    private static class GroupBuffer extends ByteArrayOutputStream {
+        private int records;
+        private int[] ends = new int[16];
+        private long[] times = new long[16];
+        private LogLevel[] levels = new LogLevel[16];
+
+        GroupBuffer(int size) {
+            super(size);
+        }
+
+        // Отметка конца очередной строки
+        void markRecord(long timestamp, LogLevel level) {
+            if (records == ends.length) {
+                ends = Arrays.copyOf(ends, records * 2);
+                times = Arrays.copyOf(times, records * 2);
+                levels = Arrays.copyOf(levels, records * 2);
+            }
+            ends[records] = count;
+            times[records] = timestamp;
+            levels[records] = level;
+            records++;
+        }
+
+        // Перенос данных и отметок в конец другого буфера
+        void appendTo(GroupBuffer target) {
+            int shift = target.count;
+            target.write(buf, 0, count);
+            for (int i = 0; i < records; i++) {
+                target.markRecord(0, null);
+                target.ends[target.records - 1] = ends[i] + shift;
+                target.times[target.records - 1] = times[i];
+                target.levels[target.records - 1] = levels[i];
+            }
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    // Итог записи одной группы; у каждой группы свой, чтобы ошибка
+    // одной группы не выдавалась за успех или ошибку другой
+    private static class GroupResult {
+        boolean done;
+        IOException error;
+    }
+
+    private final String logFilePath;
+    private final Durability durability;
+    private final long fsyncIntervalMs;
+    private final RotationPolicy rotation;
+    private final LogArchiver archiver;
+    private final int indexInterval;
+    private final Object commitLock = new Object();
+    private LogIndexWriter indexWriter;
+    private volatile FileChannel channel;
+    private long currentSize;
+    private long windowStart;
+    private GroupBuffer pending = new GroupBuffer(4096);
+    private GroupResult pendingResult = new GroupResult(); // итог группы pending
+    private boolean committing;
+    private boolean closed;
+    private volatile boolean unsynced;
+    private volatile long lastSyncTime = System.currentTimeMillis();
+    private ScheduledExecutorService syncTimer;
+
+    public FileLogAppender(String logFilePath) {
+        this(logFilePath, Durability.NONE, 0);
+    }
+
+    public FileLogAppender(String logFilePath, Durability durability, long fsyncIntervalMs) {
+        this(logFilePath, durability, fsyncIntervalMs, RotationPolicy.NONE, 0);
+    }
+
+    // indexInterval - число строк в блоке индекса; 0 - индекс не ведется
+    public FileLogAppender(String logFilePath, Durability durability, long fsyncIntervalMs,
+                           RotationPolicy rotation, int indexInterval) {
+        this.logFilePath = logFilePath;
+        this.durability = durability;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.rotation = rotation;
+        this.indexInterval = indexInterval;
+        this.archiver = rotation.needsArchiving() ? new LogArchiver(logFilePath, rotation) : null;
+        if (durability == Durability.INTERVAL_MS && fsyncIntervalMs > 0) {
+            // Сброс хвоста, если после последней записи новых сообщений не было
+            syncTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "log-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncTimer.scheduleWithFixedDelay(this::syncIfDue, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void append(LogEvent event) throws IOException {
+        appendBatch(Collections.singletonList(event));
+    }
+
+    public void appendBatch(List<LogEvent> events) throws IOException {
+        // Кодирование выполняется вне блокировки
+        GroupBuffer encoded = new GroupBuffer(events.size() * 96);
+        for (LogEvent event : events) {
+            encoded.write(event.format().getBytes(StandardCharsets.UTF_8));
+            encoded.write(LINE_SEPARATOR);
+            encoded.markRecord(event.getTimestamp(), event.getLevel());
+        }
+        commit(encoded);
+    }
+
+    // Добавление данных в текущую группу и ожидание ее записи
+    private void commit(GroupBuffer data) throws IOException {
+        GroupBuffer group;
+        GroupResult result;
+        synchronized (commitLock) {
+            if (closed) {
+                throw new IOException("Файл логов закрыт: " + logFilePath);
+            }
+            data.appendTo(pending);
+            result = pendingResult;
+            while (committing && !result.done) {
+                waitForCommit();
+            }
+            if (result.done) {
+                // Данные записал другой поток
+                if (result.error != null) {
+                    throw result.error;
+                }
+                return;
+            }
+            // Этот поток становится лидером и пишет всю группу
+            committing = true;
+            group = takePending();
+        }
+        IOException error = null;
+        try {
+            writeGroup(group);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (commitLock) {
+            finishGroup(result, error);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Текущая группа уходит на запись, новые данные копятся в следующей (под commitLock)
+    private GroupBuffer takePending() {
+        GroupBuffer group = pending;
+        pending = new GroupBuffer(Math.max(4096, group.size()));
+        pendingResult = new GroupResult();
+        return group;
+    }
+
+    private void finishGroup(GroupResult result, IOException error) {
+        result.done = true;
+        result.error = error;
+        committing = false;
+        commitLock.notifyAll();
+    }
+
+    // Прерванный поток перестает ждать, но его данные остаются в группе:
+    // их запишет следующий лидер или close()
+    private void waitForCommit() throws InterruptedIOException {
+        try {
+            commitLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Прервано ожидание записи логов");
+        }
+    }
+
+    // Запись группы; вызывается только лидером
+    private void writeGroup(GroupBuffer group) throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            // Канал мог закрыться из-за прерывания предыдущего лидера
+            openChannel();
+        }
+        long now = System.currentTimeMillis();
+        if (rotation.shouldRotate(currentSize, group.size(), windowStart, now)) {
+            rotate();
+            openChannel();
+        }
+        long groupStart = currentSize;
+        ByteBuffer buffer = group.asByteBuffer();
+        while (buffer.hasRemaining()) {
+            currentSize += channel.write(buffer);
+        }
+        LoggerMetrics.getInstance().addBytesWritten(currentSize - groupStart);
+        if (indexWriter != null) {
+            int start = 0;
+            for (int i = 0; i < group.records; i++) {
+                indexWriter.add(groupStart + start, groupStart + group.ends[i], group.times[i], group.levels[i]);
+                start = group.ends[i];
+            }
+        }
+        unsynced = true;
+        if (durability == Durability.EVERY_BATCH) {
+            sync();
+        } else if (durability == Durability.INTERVAL_MS
+                && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs) {
+            sync();
+        }
+    }
+
+    private void openChannel() throws IOException {
+        Path path = Paths.get(logFilePath);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        currentSize = channel.size();
+        // Окно считается по времени последнего изменения, чтобы старый файл
+        // был закрыт при первой записи в новом окне
+        long lastModified = currentSize > 0 ? Files.getLastModifiedTime(path).toMillis() : System.currentTimeMillis();
+        windowStart = rotation.windowStart(lastModified);
+        if (indexWriter != null) {
+            indexWriter.close();
+            indexWriter = null;
+        }
+        if (indexInterval > 0) {
+            indexWriter = new LogIndexWriter(path, indexInterval, currentSize == 0);
+        }
+    }
+
+    // Закрытие текущего файла и перенос его в следующий сегмент
+    private void rotate() throws IOException {
+        if (durability != Durability.NONE) {
+            channel.force(false);
+        }
+        unsynced = false;
+        channel.close();
+        channel = null;
+        Path segment = LogSegments.segmentPath(logFilePath, LogSegments.nextIndex(logFilePath));
+        Files.move(Paths.get(logFilePath), segment);
+        if (indexWriter != null) {
+            indexWriter.close();
+            indexWriter = null;
+            Files.move(LogIndex.sidecarPath(Paths.get(logFilePath)), LogIndex.sidecarPath(segment));
+        }
+        if (archiver != null) {
+            archiver.archive(segment);
+        }
+    }
+
+    private void sync() throws IOException {
+        unsynced = false;
+        channel.force(false);
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    // Вызывается таймером в режиме INTERVAL_MS
+    private void syncIfDue() {
+        try {
+            FileChannel current = channel;
+            if (unsynced && current != null && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs) {
+                unsynced = false;
+                current.force(false);
+                lastSyncTime = System.currentTimeMillis();
+            }
+        } catch (ClosedChannelException e) {
+            // Файл закрыт ротацией; данные сброшены при закрытии
+        } catch (IOException e) {
+            System.err.println("Ошибка сброса логов на диск: " + e.getMessage());
+        }
+    }
+
+    // Дожидается текущей записи, сам записывает оставшуюся группу,
+    // сбрасывает данные и закрывает канал; после этого запись отклоняется
+    public void close() throws IOException {
+        IOException error = null;
+        // Флаг прерывания снимается на время закрытия: иначе канал откажет в записи остатка
+        boolean interrupted = Thread.interrupted();
+        synchronized (commitLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            while (committing) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (pending.size() > 0) {
+                GroupResult result = pendingResult;
+                try {
+                    writeGroup(takePending());
+                } catch (IOException e) {
+                    error = e;
+                }
+                finishGroup(result, error);
+            }
+            if (syncTimer != null) {
+                syncTimer.shutdownNow();
+            }
+            if (channel != null) {
+                if (durability != Durability.NONE) {
+                    channel.force(false);
+                }
+                channel.close();
+                channel = null;
+            }
+            if (indexWriter != null) {
+                indexWriter.close();
+                indexWriter = null;
+            }
+        }
+        if (archiver != null) {
+            archiver.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
+
+// Разреженный индекс текстового лога (файл <лог>.idx).
+// Одна запись на блок из N строк: [long начало][long конец][long мин. время][long макс. время][int маска уровней]
+class LogIndex {
+    public static final int ENTRY_SIZE = 36;
+
+    // Блок строк лога
+    static class Block {
+        final long start;
+        final long end;
+        final long minTime;
+        final long maxTime;
+        final int levelMask;
+
+        Block(long start, long end, long minTime, long maxTime, int levelMask) {
+            this.start = start;
+            this.end = end;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.levelMask = levelMask;
+        }
+
+        // Может ли блок содержать строки уровня level за период [fromMillis, toMillis)
+        boolean mayContain(LogLevel level, long fromMillis, long toMillis) {
+            return (levelMask & (1 << level.ordinal())) != 0 && maxTime >= fromMillis && minTime < toMillis;
+        }
+    }
+
+    public static Path sidecarPath(Path logFile) {
+        return Paths.get(logFile + ".idx");
+    }
+
+    // Блоки индекса в порядке смещений; записи за концом файла отбрасываются
+    public static List<Block> read(Path logFile) throws IOException {
+        Path indexFile = sidecarPath(logFile);
+        List<Block> blocks = new ArrayList<>();
+        if (!Files.exists(indexFile)) {
+            return blocks;
+        }
+        long fileSize = Files.size(logFile);
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        while (data.remaining() >= ENTRY_SIZE) {
+            Block block = new Block(data.getLong(), data.getLong(), data.getLong(), data.getLong(), data.getInt());
+            if (block.end <= fileSize && block.start < block.end) {
+                blocks.add(block);
+            }
+        }
+        blocks.sort(Comparator.comparingLong(block -> block.start));
+        return blocks;
+    }
+}
+
+// Построение индекса во время записи лога
+class LogIndexWriter implements Closeable {
+    private final FileChannel channel;
+    private final int interval;
+    private final ByteBuffer entry = ByteBuffer.allocate(LogIndex.ENTRY_SIZE);
+    private int records;
+    private long blockStart;
+    private long blockEnd;
+    private long minTime;
+    private long maxTime;
+    private int levelMask;
+
+    // logFileEmpty - лог пуст, старый индекс (если есть) к нему не относится
+    public LogIndexWriter(Path logFile, int interval, boolean logFileEmpty) throws IOException {
+        this.interval = interval;
+        this.channel = FileChannel.open(LogIndex.sidecarPath(logFile),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (logFileEmpty) {
+            channel.truncate(0);
+        }
+    }
+
+    // Учет строки, занимающей байты [start, end) лога
+    public void add(long start, long end, long timestamp, LogLevel level) throws IOException {
+        if (records == 0 || start != blockEnd) {
+            // Новый блок начинается и после разрыва в данных
+            finishBlock();
+            blockStart = start;
+            minTime = timestamp;
+            maxTime = timestamp;
+        }
+        blockEnd = end;
+        minTime = Math.min(minTime, timestamp);
+        maxTime = Math.max(maxTime, timestamp);
+        levelMask |= 1 << level.ordinal();
+        if (++records == interval) {
+            finishBlock();
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        if (records == 0) {
+            return;
+        }
+        entry.clear();
+        entry.putLong(blockStart).putLong(blockEnd).putLong(minTime).putLong(maxTime).putInt(levelMask);
+        entry.flip();
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+        records = 0;
+        levelMask = 0;
+    }
+
+    // Записывает неполный последний блок
+    public void close() throws IOException {
+        finishBlock();
+        channel.close();
+    }
+}
+
+// Разбор строк текстового лога
+class LogLine {
+    private static final int TIMESTAMP_LENGTH = "yyyy-MM-dd HH:mm:ss.SSS".length();
+    // Прежний формат строк (Date.toString), с точностью до секунды
+    private static final DateTimeFormatter LEGACY_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+    private static final int LEGACY_MIN_LENGTH = "EEE MMM dd HH:mm:ss z yyyy".length();
+
+    // Время записи в миллисекундах или -1 для строк в другом формате
+    public static long parseTimestamp(String line) {
+        if (line.length() < TIMESTAMP_LENGTH || line.charAt(4) != '-' || line.charAt(10) != ' ' || line.charAt(19) != '.') {
+            return parseLegacyTimestamp(line);
+        }
+        try {
+            LocalDateTime time = LocalDateTime.of(
+                    Integer.parseInt(line, 0, 4, 10),
+                    Integer.parseInt(line, 5, 7, 10),
+                    Integer.parseInt(line, 8, 10, 10),
+                    Integer.parseInt(line, 11, 13, 10),
+                    Integer.parseInt(line, 14, 16, 10),
+                    Integer.parseInt(line, 17, 19, 10),
+                    Integer.parseInt(line, 20, 23, 10) * 1_000_000);
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // "Sun Oct 18 14:31:51 UTC 2026 [INFO] ..."
+    private static long parseLegacyTimestamp(String line) {
+        if (line.length() < LEGACY_MIN_LENGTH || line.charAt(3) != ' ' || line.charAt(7) != ' '
+                || line.charAt(13) != ':' || line.charAt(16) != ':') {
+            return -1;
+        }
+        int end = line.indexOf(" [");
+        if (end < LEGACY_MIN_LENGTH - 1) {
+            return -1;
+        }
+        try {
+            return Instant.from(LEGACY_FORMAT.parse(line.substring(0, end))).toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    public static boolean hasLevel(String line, LogLevel level) {
+        return line.contains("[" + level + "]");
+    }
+
+    // Уровень из строки "время [УРОВЕНЬ] ..." или null
+    public static LogLevel parseLevel(String line) {
+        int start = line.indexOf('[');
+        int end = start < 0 ? -1 : line.indexOf(']', start + 1);
+        if (end < 0) {
+            return null;
+        }
+        try {
+            return LogLevel.valueOf(line.substring(start + 1, end));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Текст после уровня (вместе с именем логгера)
+    public static String message(String line) {
+        int end = line.indexOf("] ");
+        return end < 0 ? line : line.substring(end + 2);
+    }
+}
+
+// Фильтр Блума по словам закрытого сегмента лога (файл <сегмент>.bloom).
+// Строится в фоне после закрытия сегмента; по нему поиск пропускает
+// сегменты, в которых искомого слова точно нет.
+// Слово - непрерывная последовательность букв, цифр и '_'.
+class LogBloomFilter {
+    private static final int MAGIC = 0x4C424C4D;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MAX_HASHES = 16;
+    private static final int HEADER_SIZE = 12; // MAGIC, число хэшей, число слов
+
+    private final long[] bits;
+    private final int hashes;
+
+    private LogBloomFilter(long[] bits, int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+    }
+
+    // Фильтр относится к несжатому имени сегмента и переживает его сжатие
+    public static Path sidecarPath(Path segment) {
+        String name = segment.toString();
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - ".gz".length());
+        }
+        return Paths.get(name + ".bloom");
+    }
+
+    // Построение фильтра по всем словам сегмента и запись рядом с ним
+    public static void build(Path segment) throws IOException {
+        HashBuffer tokens = new HashBuffer();
+        LogReader.forEachLine(segment, line -> forEachToken(line, tokens));
+        long[] distinct = tokens.distinct();
+        int count = Math.max(distinct.length, 1);
+        double ln2 = Math.log(2);
+        long bitCount = (long) Math.ceil(-count * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2));
+        int words = (int) Math.min((bitCount + 63) / 64, Integer.MAX_VALUE - 8);
+        int hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) words * 64 / count * ln2)));
+        LogBloomFilter filter = new LogBloomFilter(new long[words], hashes);
+        for (long hash : distinct) {
+            filter.put(hash);
+        }
+        filter.write(sidecarPath(segment));
+    }
+
+    // Фильтр сегмента или null, если он еще не построен или поврежден:
+    // тогда сегмент просматривается целиком. Заголовок проверяется по длине
+    // файла до выделения памяти под биты
+    public static LogBloomFilter read(Path segment) throws IOException {
+        Path file = sidecarPath(segment);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long size = Files.size(file);
+            if (size < HEADER_SIZE || in.readInt() != MAGIC) {
+                return null;
+            }
+            int hashes = in.readInt();
+            int words = in.readInt();
+            if (hashes < 1 || hashes > MAX_HASHES || words < 1 || size != HEADER_SIZE + (long) words * Long.BYTES) {
+                return null;
+            }
+            long[] bits = new long[words];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new LogBloomFilter(bits, hashes);
+        } catch (NoSuchFileException | EOFException e) {
+            return null;
+        }
+    }
+
+    // Запись во временный файл и переименование: читатели не видят недописанный фильтр
+    private void write(Path file) throws IOException {
+        Path temp = Paths.get(file + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(hashes);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // false - в сегменте точно нет хотя бы одного слова из term
+    public boolean mightContainAll(String term) {
+        boolean[] all = {true};
+        forEachToken(term, hash -> all[0] &= mightContain(hash));
+        return all[0];
+    }
+
+    private void put(long hash) {
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(hash + i * (hash >>> 32 | 1), bitCount);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean mightContain(long hash) {
+        long bitCount = (long) bits.length * 64;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(hash + i * (hash >>> 32 | 1), bitCount);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Хэши (FNV-1a с перемешиванием) всех слов строки
+    static void forEachToken(String text, LongConsumer consumer) {
+        long hash = 0;
+        int length = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && isWordChar(text.charAt(i))) {
+                if (length++ == 0) {
+                    hash = 0xcbf29ce484222325L;
+                }
+                hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+            } else if (length > 0) {
+                hash ^= hash >>> 33;
+                hash *= 0xff51afd7ed558ccdL;
+                hash ^= hash >>> 33;
+                consumer.accept(hash);
+                length = 0;
+            }
+        }
+    }
+
+    static boolean isWordChar(char c) {
+        return java.lang.Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // Встречается ли term в строке целыми словами (не частью более длинного слова)
+    static boolean containsTerm(String line, String term) {
+        if (term.isEmpty()) {
+            return true;
+        }
+        int from = 0;
+        int found;
+        while ((found = line.indexOf(term, from)) >= 0) {
+            int end = found + term.length();
+            boolean startOk = found == 0 || !isWordChar(term.charAt(0)) || !isWordChar(line.charAt(found - 1));
+            boolean endOk = end == line.length() || !isWordChar(term.charAt(term.length() - 1)) || !isWordChar(line.charAt(end));
+            if (startOk && endOk) {
+                return true;
+            }
+            from = found + 1;
+        }
+        return false;
+    }
+
+    // Накопитель хэшей слов: при заполнении повторы удаляются сортировкой,
+    // поэтому память пропорциональна числу различных слов
+    private static class HashBuffer implements LongConsumer {
+        private long[] values = new long[1 << 16];
+        private int size;
+
+        public void accept(long hash) {
+            if (size == values.length) {
+                compact();
+                if (size > values.length / 2) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+            }
+            values[size++] = hash;
+        }
+
+        private void compact() {
+            Arrays.sort(values, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || values[i] != values[unique - 1]) {
+                    values[unique++] = values[i];
+                }
+            }
+            size = unique;
+        }
+
+        long[] distinct() {
+            compact();
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
+
+// Приемник с собственным порогом уровня: логгер может пропускать INFO
+// (например, для бортового самописца), а файл получает только WARNING и выше
+class ThresholdAppender implements LogAppender {
+    private final LogAppender delegate;
+    private final LogLevel threshold;
+
+    public ThresholdAppender(LogAppender delegate, LogLevel threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    public LogAppender getDelegate() {
+        return delegate;
+    }
+
+    public void append(LogEvent event) throws IOException {
+        if (event.getLevel().ordinal() >= threshold.ordinal()) {
+            delegate.append(event);
+        }
+    }
+
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
+
+// "Бортовой самописец": последние N событий любого уровня хранятся
+// в заранее выделенном кольце вне кучи и ничего не пишут на диск,
+// пока не придет событие уровня trigger (по умолчанию ERROR).
+// Тогда содержимое кольца дописывается в файл и кольцо очищается.
+class FlightRecorderAppender implements LogAppender {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final ByteBuffer ring;     // слоты: [int длина][UTF-8 строка, обрезанная по размеру слота]
+    private final ByteBuffer slotView; // окно записи в текущий слот
+    private final int capacity;
+    private final int slotSize;
+    private final String dumpFilePath;
+    private final LogLevel trigger;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private long written; // всего записано событий с последнего сброса
+
+    public FlightRecorderAppender(int capacity, int slotSize, String dumpFilePath, LogLevel trigger) {
+        if (capacity <= 0 || slotSize <= 4) {
+            throw new IllegalArgumentException("Недопустимый размер самописца: " + capacity + " x " + slotSize);
+        }
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.dumpFilePath = dumpFilePath;
+        this.trigger = trigger;
+        this.ring = ByteBuffer.allocateDirect(Math.multiplyExact(capacity, slotSize));
+        this.slotView = ring.duplicate();
+    }
+
+    public synchronized void append(LogEvent event) throws IOException {
+        int base = (int) (written % capacity) * slotSize;
+        slotView.limit(base + slotSize).position(base + 4);
+        encoder.reset();
+        // При переполнении строка обрезается по границе символа
+        encoder.encode(CharBuffer.wrap(event.format()), slotView, true);
+        ring.putInt(base, slotView.position() - base - 4);
+        written++;
+        if (event.getLevel().ordinal() >= trigger.ordinal()) {
+            dump();
+        }
+    }
+
+    // Запись содержимого кольца от старых событий к новым
+    private void dump() throws IOException {
+        long count = Math.min(written, capacity);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) count * 128);
+        out.write(("=== Бортовой самописец: последние " + count + " событий ===").getBytes(StandardCharsets.UTF_8));
+        out.write(LINE_SEPARATOR);
+        byte[] line = new byte[slotSize];
+        for (long i = written - count; i < written; i++) {
+            int base = (int) (i % capacity) * slotSize;
+            int length = ring.getInt(base);
+            ring.get(base + 4, line, 0, length);
+            out.write(line, 0, length);
+            out.write(LINE_SEPARATOR);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(dumpFilePath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer data = ByteBuffer.wrap(out.toByteArray());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+        LoggerMetrics.getInstance().addBytesWritten(out.size());
+        written = 0;
+    }
+
+    public void close() {
+    }
+}
+
+// Поведение при переполнении очереди асинхронного логгера
+enum OverflowPolicy {
+    BLOCK,       // ждать освобождения места
+    DROP_NEWEST, // отбросить новое сообщение
+    DROP_OLDEST  // вытеснить самое старое сообщение
+}
+
+// Ограниченный кольцевой буфер: много писателей, один читатель
+class LogRingBuffer {
+    private final LogEvent[] slots;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long head; // следующая позиция для чтения
+    private long tail; // следующая позиция для записи
+    private long dropped;
+    private boolean closed; // после закрытия новые события не принимаются
+
+    public LogRingBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Размер буфера должен быть положительным: " + capacity);
+        }
+        this.slots = new LogEvent[capacity];
+        this.policy = policy;
+    }
+
+    // Добавление события; возвращает число отброшенных при этом событий.
+    // В закрытый буфер события не добавляются (IllegalStateException)
+    public int offer(LogEvent event) throws InterruptedException {
+        lock.lock();
+        try {
+            int droppedNow = 0;
+            while (tail - head == slots.length) {
+                checkOpen();
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    dropped++;
+                    return 1;
+                } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                    slots[(int) (head % slots.length)] = null;
+                    head++;
+                    dropped++;
+                    droppedNow++;
+                } else {
+                    notFull.await();
+                }
+            }
+            checkOpen();
+            slots[(int) (tail % slots.length)] = event;
+            tail++;
+            notEmpty.signal();
+            return droppedNow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Забирает до maxEvents событий, ожидая первое не дольше timeoutMs;
+    // -1 - буфер закрыт и пуст, событий больше не будет
+    public int drainTo(List<LogEvent> batch, int maxEvents, long timeoutMs) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (tail == head) {
+                if (closed) {
+                    return -1;
+                }
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int count = 0;
+            while (head < tail && count < maxEvents) {
+                int index = (int) (head % slots.length);
+                batch.add(slots[index]);
+                slots[index] = null;
+                head++;
+                count++;
+            }
+            notFull.signalAll();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Закрытие: принятые события еще можно забрать, новые отклоняются.
+    // false - буфер уже был закрыт
+    public boolean close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Буфер логов закрыт");
+        }
+    }
+}
+
+// Асинхронный приемник: log() только кладет событие в буфер,
+// фоновый поток пачками передает события основному приемнику
+class AsyncLogAppender implements LogAppender {
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private final LogAppender delegate;
+    private final LogRingBuffer buffer;
+    private final Thread writerThread;
+
+    public AsyncLogAppender(LogAppender delegate, int capacity, OverflowPolicy policy) {
+        this.delegate = delegate;
+        this.buffer = new LogRingBuffer(capacity, policy);
+        this.writerThread = new Thread(this::drainLoop, "async-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    // После close() события отклоняются: основной приемник уже закрыт
+    public void append(LogEvent event) throws IOException {
+        try {
+            int dropped = buffer.offer(event);
+            if (dropped > 0) {
+                LoggerMetrics.getInstance().addDropped(dropped);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Асинхронный приемник логов закрыт");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Прервано ожидание места в буфере логов");
+        }
+    }
+
+    // Цикл фонового потока: до закрытия буфера и выборки всех принятых событий
+    private void drainLoop() {
+        List<LogEvent> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        try {
+            drain(batch, 100);
+        } catch (InterruptedException e) {
+            // Оставшиеся события допишет close()
+        }
+    }
+
+    private void drain(List<LogEvent> batch, long timeoutMs) throws InterruptedException {
+        int count;
+        while ((count = buffer.drainTo(batch, MAX_BATCH_SIZE, timeoutMs)) >= 0) {
+            if (count > 0) {
+                try {
+                    delegate.appendBatch(batch);
+                } catch (IOException | RuntimeException e) {
+                    // Фоновый поток продолжает работу: иначе BLOCK-производители ждали бы места вечно
+                    System.err.println("Ошибка записи логов: " + e);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    public int getQueueSize() {
+        return buffer.size();
+    }
+
+    public long getDroppedCount() {
+        return buffer.getDropped();
+    }
+
+    // Останавливает поток, дописав все принятые события; повторный вызов ничего не делает
+    public void close() throws IOException {
+        if (!buffer.close()) {
+            return;
+        }
+        // Пока фоновый поток пишет, основной приемник закрывать нельзя: ожидание
+        // продолжается и после прерывания, флаг прерывания восстанавливается в конце
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        // Если фоновый поток был прерван, остаток дописывается здесь
+        try {
+            drain(new ArrayList<>(MAX_BATCH_SIZE), 0);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+}
+
+// Файлы сегментов логов: <путь>.000001, <путь>.000002, ... и сам файл <путь>
+class LogSegments {
+    private static final int INDEX_DIGITS = 6;
+
+    // Unsafe.invokeCleaner для освобождения отображений; null - недоступен
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            unsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = invokeCleaner != null ? unsafe : null;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    public static Path segmentPath(String logFilePath, long index) {
+        return Paths.get(logFilePath + "." + String.format("%0" + INDEX_DIGITS + "d", index));
+    }
+
+    // Номер сегмента по имени файла или -1, если файл не является сегментом
+    public static long segmentIndex(String logFilePath, Path file) {
+        String prefix = Paths.get(logFilePath).getFileName() + ".";
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || name.length() < prefix.length() + INDEX_DIGITS) {
+            return -1;
+        }
+        String digits = name.substring(prefix.length(), prefix.length() + INDEX_DIGITS);
+        for (int i = 0; i < digits.length(); i++) {
+            if (!java.lang.Character.isDigit(digits.charAt(i))) {
+                return -1;
+            }
+        }
+        // Вспомогательные файлы (.idx, .tmp и т.п.) сегментами не считаются
+        String suffix = name.substring(prefix.length() + INDEX_DIGITS);
+        if (!suffix.isEmpty() && !suffix.equals(".gz")) {
+            return -1;
+        }
+        return Long.parseLong(digits);
+    }
+
+    // Все сегменты в порядке записи; основной файл (если есть) идет последним
+    public static List<Path> list(String logFilePath) throws IOException {
+        Path base = Paths.get(logFilePath).toAbsolutePath();
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(base.getParent())) {
+            for (Path file : stream) {
+                if (segmentIndex(logFilePath, file) >= 0) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong((Path file) -> segmentIndex(logFilePath, file))
+                .thenComparing(Path::toString));
+        if (Files.exists(base)) {
+            segments.add(base);
+        }
+        return segments;
+    }
+
+    // Поток байтов сегмента, в том числе сжатого; поддерживает mark
+    public static InputStream openStream(Path segment) throws IOException {
+        InputStream in = Files.newInputStream(segment);
+        if (segment.toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 64 * 1024);
+        }
+        return new BufferedInputStream(in, 64 * 1024);
+    }
+
+    // Чтение текстового сегмента, в том числе сжатого
+    public static BufferedReader open(Path segment) throws IOException {
+        return new BufferedReader(new InputStreamReader(textStream(openStream(segment)), StandardCharsets.UTF_8));
+    }
+
+    // Текст сегмента до первого нулевого байта. В тексте лога нулевых байтов нет,
+    // а у mmap-сегмента, который не удалось обрезать (или записанного до сбоя),
+    // за данными идет нулевой хвост: без этой границы он читался бы одной строкой
+    public static InputStream textStream(InputStream in) {
+        return new FilterInputStream(in) {
+            private boolean ended;
+
+            @Override
+            public int read() throws IOException {
+                if (ended) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b == 0) {
+                    ended = true;
+                    return -1;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (ended) {
+                    return -1;
+                }
+                int read = super.read(buffer, offset, length);
+                for (int i = offset; i < offset + read; i++) {
+                    if (buffer[i] == 0) {
+                        ended = true;
+                        return i > offset ? i - offset : -1;
+                    }
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                return ended ? 0 : super.skip(n);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    // Освобождение отображения файла до сборки мусора (через Unsafe.invokeCleaner).
+    // false - на этой платформе отображение освободить нельзя; буфер после
+    // успешного вызова использовать нельзя
+    static boolean unmap(MappedByteBuffer buffer) {
+        if (UNSAFE == null) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    // Следующий свободный номер сегмента
+    public static long nextIndex(String logFilePath) throws IOException {
+        long max = 0;
+        for (Path file : list(logFilePath)) {
+            max = Math.max(max, segmentIndex(logFilePath, file));
+        }
+        return max + 1;
+    }
+}
+
+// Запись логов в заранее выделенные сегменты, отображенные в память.
+// Запись сообщения - кодирование строки прямо в отображенную память
+// и сдвиг позиции; при заполнении сегмента открывается следующий.
+class MappedLogAppender implements LogAppender {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final String logFilePath;
+    private final long segmentSize;
+    private final Durability durability;
+    private final RotationPolicy rotation;
+    private final LogArchiver archiver;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private Path segmentPath;
+    private long windowStart;
+
+    public MappedLogAppender(String logFilePath, long segmentSize, Durability durability) {
+        this(logFilePath, segmentSize, durability, RotationPolicy.NONE);
+    }
+
+    public MappedLogAppender(String logFilePath, long segmentSize, Durability durability, RotationPolicy rotation) {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Недопустимый размер сегмента: " + segmentSize);
+        }
+        this.logFilePath = logFilePath;
+        this.segmentSize = segmentSize;
+        this.durability = durability;
+        this.rotation = rotation;
+        this.archiver = rotation.needsArchiving() ? new LogArchiver(logFilePath, rotation) : null;
+    }
+
+    public synchronized void append(LogEvent event) throws IOException {
+        write(event);
+        if (durability == Durability.EVERY_BATCH) {
+            mapped.force();
+        }
+    }
+
+    public synchronized void appendBatch(List<LogEvent> events) throws IOException {
+        for (LogEvent event : events) {
+            write(event);
+        }
+        if (durability == Durability.EVERY_BATCH && mapped != null) {
+            mapped.force();
+        }
+    }
+
+    // Строка кодируется сразу в сегмент; если она не поместилась или по ее
+    // закодированной длине пора ротировать, запись откатывается и повторяется
+    // в новом сегменте
+    private void write(LogEvent event) throws IOException {
+        CharBuffer line = CharBuffer.wrap(event.format() + LINE_SEPARATOR);
+        if (mapped == null) {
+            openSegment();
+        }
+        int start = mapped.position();
+        if (!encode(line) || rotation.shouldRotate(start, mapped.position() - start, windowStart, event.getTimestamp())) {
+            mapped.position(start);
+            finishSegment();
+            openSegment();
+            line.rewind();
+            start = 0;
+            if (!encode(line)) {
+                mapped.position(0);
+                throw new IOException("Сообщение больше размера сегмента логов (" + segmentSize + " байт)");
+            }
+        }
+        LoggerMetrics.getInstance().addBytesWritten(mapped.position() - start);
+    }
+
+    // false - строка не поместилась в остаток сегмента
+    private boolean encode(CharBuffer line) {
+        encoder.reset();
+        return !encoder.encode(line, mapped, true).isOverflow() && !encoder.flush(mapped).isOverflow();
+    }
+
+    private void openSegment() throws IOException {
+        segmentPath = LogSegments.segmentPath(logFilePath, LogSegments.nextIndex(logFilePath));
+        channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        windowStart = rotation.windowStart(System.currentTimeMillis());
+    }
+
+    // Обрезает сегмент до реально записанных данных и закрывает его.
+    // Размер файла меняется только после освобождения отображения (Windows
+    // не дает обрезать отображенный файл); если освободить его нельзя,
+    // нулевой хвост остается, и читатели останавливаются на первом нулевом байте
+    private void finishSegment() throws IOException {
+        int written = mapped.position();
+        if (durability != Durability.NONE) {
+            mapped.force();
+        }
+        MappedByteBuffer released = mapped;
+        mapped = null;
+        try {
+            if (LogSegments.unmap(released)) {
+                channel.truncate(written);
+            }
+        } finally {
+            channel.close();
+            channel = null;
+        }
+        if (archiver != null) {
+            archiver.archive(segmentPath);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (mapped != null) {
+            finishSegment();
+        }
+        if (archiver != null) {
+            archiver.close();
+        }
+    }
+}
+
+// Двоичный формат логов.
+// Файл: "LOGB", версия; далее записи двух видов:
+//   шаблон: [1][int id][int длина][UTF-8]
+//   событие: [2][int длина тела][long epochNanos][byte уровень][int id имени логгера]
+//            [int id шаблона][byte число аргументов][аргументы]
+// Имена логгеров интернируются вместе с шаблонами (в версии 1 поля имени нет).
+// Время и уровень события лежат по фиксированным смещениям, поэтому
+// фильтрация не требует разбора текста.
+class BinaryLogFormat {
+    public static final byte[] MAGIC = {'L', 'O', 'G', 'B'};
+    public static final byte VERSION = 2;
+    public static final byte TEMPLATE_RECORD = 1;
+    public static final byte EVENT_RECORD = 2;
+    public static final int NO_TEMPLATE = -1; // сообщение без шаблона хранится как строковый аргумент
+    public static final int MAX_TEMPLATES = 65536;
+    public static final int MAX_ARGS = 255; // число аргументов хранится в одном байте
+
+    public static final byte ARG_NULL = 0;
+    public static final byte ARG_INT = 1;
+    public static final byte ARG_LONG = 2;
+    public static final byte ARG_DOUBLE = 3;
+    public static final byte ARG_BOOLEAN = 4;
+    public static final byte ARG_STRING = 5;
+
+    // Проверка сигнатуры в начале потока (поток должен поддерживать mark)
+    public static boolean isBinary(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        byte[] head = new byte[MAGIC.length];
+        int read = in.readNBytes(head, 0, head.length);
+        in.reset();
+        return read == MAGIC.length && Arrays.equals(head, MAGIC);
+    }
+}
+
+// Запись логов в двоичном формате через постоянно открытый FileChannel.
+// Шаблоны сообщений интернируются: текст шаблона пишется в файл один раз,
+// далее события ссылаются на него по номеру.
+class BinaryLogAppender implements LogAppender {
+    // Буфер записи с возможностью дописать длину задним числом
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer(int size) {
+            super(size);
+        }
+
+        void patchInt(int position, int value) {
+            buf[position] = (byte) (value >>> 24);
+            buf[position + 1] = (byte) (value >>> 16);
+            buf[position + 2] = (byte) (value >>> 8);
+            buf[position + 3] = (byte) value;
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final String logFilePath;
+    private final Durability durability;
+    private final long fsyncIntervalMs;
+    private final RotationPolicy rotation;
+    private final LogArchiver archiver;
+    private final RecordBuffer buffer = new RecordBuffer(8192);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final Map<String, Integer> templateIds = new HashMap<>(); // шаблоны, уже записанные в текущий файл
+    private FileChannel channel;
+    private long currentSize;
+    private long windowStart;
+    private boolean unsynced;
+    private long lastSyncTime = System.currentTimeMillis();
+    private ScheduledExecutorService syncTimer;
+
+    public BinaryLogAppender(String logFilePath, Durability durability, RotationPolicy rotation) {
+        this(logFilePath, durability, 0, rotation);
+    }
+
+    public BinaryLogAppender(String logFilePath, Durability durability, long fsyncIntervalMs, RotationPolicy rotation) {
+        this.logFilePath = logFilePath;
+        this.durability = durability;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.rotation = rotation;
+        this.archiver = rotation.needsArchiving() ? new LogArchiver(logFilePath, rotation) : null;
+        if (durability == Durability.INTERVAL_MS && fsyncIntervalMs > 0) {
+            // Сброс хвоста, если после последней записи новых сообщений не было
+            syncTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "log-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncTimer.scheduleWithFixedDelay(this::syncIfDue, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void append(LogEvent event) throws IOException {
+        appendBatch(Collections.singletonList(event));
+    }
+
+    public synchronized void appendBatch(List<LogEvent> events) throws IOException {
+        if (channel == null) {
+            openChannel();
+        }
+        buffer.reset();
+        for (LogEvent event : events) {
+            encode(event);
+        }
+        if (rotation.shouldRotate(currentSize, buffer.size(), windowStart, System.currentTimeMillis())) {
+            // Номера шаблонов действуют в пределах файла: кодируем заново
+            rotate();
+            openChannel();
+            buffer.reset();
+            for (LogEvent event : events) {
+                encode(event);
+            }
+        }
+        long validSize = currentSize;
+        ByteBuffer data = buffer.asByteBuffer();
+        try {
+            while (data.hasRemaining()) {
+                currentSize += channel.write(data);
+            }
+        } catch (IOException e) {
+            discardFailedWrite(validSize);
+            throw e;
+        }
+        LoggerMetrics.getInstance().addBytesWritten(buffer.size());
+        unsynced = true;
+        if (durability == Durability.EVERY_BATCH
+                || durability == Durability.INTERVAL_MS && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs) {
+            sync();
+        }
+    }
+
+    // Неудачная запись: недописанная пачка отрезается, а номера шаблонов при
+    // следующей записи перечитываются из файла - иначе события ссылались бы
+    // на шаблоны, определения которых не попали на диск
+    private void discardFailedWrite(long validSize) {
+        templateIds.clear();
+        try {
+            channel.truncate(validSize);
+        } catch (IOException e) {
+            System.err.println("Не удалось отрезать недописанные записи двоичного лога: " + e.getMessage());
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Канал уже неисправен
+        }
+        channel = null;
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        unsynced = false;
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    // Вызывается таймером в режиме INTERVAL_MS
+    private synchronized void syncIfDue() {
+        try {
+            if (unsynced && channel != null && System.currentTimeMillis() - lastSyncTime >= fsyncIntervalMs) {
+                sync();
+            }
+        } catch (IOException e) {
+            System.err.println("Ошибка сброса логов на диск: " + e.getMessage());
+        }
+    }
+
+    // Событие с аргументами хранится по номеру шаблона; если аргументов больше,
+    // чем помещается в формат, - готовым текстом, как сообщение без шаблона
+    private void encode(LogEvent event) throws IOException {
+        Object[] args = event.getArgs();
+        boolean templated = args != null && args.length > 0;
+        int templateId = templated && args.length <= BinaryLogFormat.MAX_ARGS
+                ? templateId(event.getTemplate()) : BinaryLogFormat.NO_TEMPLATE;
+        int loggerId = event.getLoggerName().isEmpty() ? BinaryLogFormat.NO_TEMPLATE : templateId(event.getLoggerName());
+        out.writeByte(BinaryLogFormat.EVENT_RECORD);
+        int lengthPosition = buffer.size();
+        out.writeInt(0);
+        int bodyStart = buffer.size();
+        out.writeLong(event.getEpochNanos());
+        out.writeByte(event.getLevel().ordinal());
+        out.writeInt(loggerId);
+        out.writeInt(templateId);
+        if (templateId == BinaryLogFormat.NO_TEMPLATE) {
+            out.writeByte(1);
+            writeArg(templated ? event.getMessage() : event.getTemplate());
+        } else {
+            out.writeByte(args.length);
+            for (Object arg : args) {
+                writeArg(arg);
+            }
+        }
+        buffer.patchInt(lengthPosition, buffer.size() - bodyStart);
+    }
+
+    // Номер шаблона (или имени логгера); при первом использовании в файле пишется его определение
+    private int templateId(String template) throws IOException {
+        Integer id = templateIds.get(template);
+        if (id != null) {
+            return id;
+        }
+        if (templateIds.size() >= BinaryLogFormat.MAX_TEMPLATES) {
+            return BinaryLogFormat.NO_TEMPLATE;
+        }
+        id = templateIds.size();
+        templateIds.put(template, id);
+        out.writeByte(BinaryLogFormat.TEMPLATE_RECORD);
+        out.writeInt(id);
+        writeString(template);
+        return id;
+    }
+
+    private void writeArg(Object arg) throws IOException {
+        if (arg == null) {
+            out.writeByte(BinaryLogFormat.ARG_NULL);
+        } else if (arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+            out.writeByte(BinaryLogFormat.ARG_INT);
+            out.writeInt(((Number) arg).intValue());
+        } else if (arg instanceof Long) {
+            out.writeByte(BinaryLogFormat.ARG_LONG);
+            out.writeLong((Long) arg);
+        } else if (arg instanceof Double || arg instanceof Float) {
+            out.writeByte(BinaryLogFormat.ARG_DOUBLE);
+            out.writeDouble(((Number) arg).doubleValue());
+        } else if (arg instanceof Boolean) {
+            out.writeByte(BinaryLogFormat.ARG_BOOLEAN);
+            out.writeBoolean((Boolean) arg);
+        } else {
+            out.writeByte(BinaryLogFormat.ARG_STRING);
+            writeString(String.valueOf(arg));
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void openChannel() throws IOException {
+        Path path = Paths.get(logFilePath);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        currentSize = channel.size();
+        templateIds.clear();
+        if (currentSize > 0 && !hasCurrentHeader(path)) {
+            // Файл другой версии формата: новые записи прочитались бы по его раскладке,
+            // поэтому он уходит в сегмент, а запись начинается в новом файле
+            rotate();
+            openChannel();
+            return;
+        }
+        if (currentSize == 0) {
+            channel.write(ByteBuffer.wrap(new byte[] {'L', 'O', 'G', 'B', BinaryLogFormat.VERSION}));
+            currentSize = channel.size();
+        } else {
+            // Дописывание в существующий файл: его шаблоны не известны, начинаем новые номера после них
+            templateIds.putAll(BinaryLogDecoder.readTemplateIds(path));
+        }
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        windowStart = rotation.windowStart(lastModified);
+    }
+
+    // Заголовок файла: двоичный лог текущей версии формата
+    private static boolean hasCurrentHeader(Path path) throws IOException {
+        int magicLength = BinaryLogFormat.MAGIC.length;
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] head = in.readNBytes(magicLength + 1);
+            return head.length == magicLength + 1
+                    && Arrays.equals(Arrays.copyOf(head, magicLength), BinaryLogFormat.MAGIC)
+                    && head[magicLength] == BinaryLogFormat.VERSION;
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (durability != Durability.NONE) {
+            channel.force(false);
+        }
+        unsynced = false;
+        channel.close();
+        channel = null;
+        Path segment = LogSegments.segmentPath(logFilePath, LogSegments.nextIndex(logFilePath));
+        Files.move(Paths.get(logFilePath), segment);
+        if (archiver != null) {
+            archiver.archive(segment);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.shutdownNow();
+        }
+        if (channel != null) {
+            if (durability != Durability.NONE) {
+                channel.force(false);
+            }
+            channel.close();
+            channel = null;
+        }
+        if (archiver != null) {
+            archiver.close();
+        }
+    }
+}
+
+// Запись двоичного лога; текст собирается только по запросу
+class BinaryLogRecord {
+    private final String loggerName;
+    private final long epochNanos;
+    private final LogLevel level;
+    private final String template;
+    private final Object[] args;
+
+    public BinaryLogRecord(String loggerName, long epochNanos, LogLevel level, String template, Object[] args) {
+        this.loggerName = loggerName;
+        this.epochNanos = epochNanos;
+        this.level = level;
+        this.template = template;
+        this.args = args;
+    }
+
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public Object[] getArgs() {
+        return args;
+    }
+
+    // Строка в том же виде, что и в текстовом логе
+    public String render() {
+        LogEvent event = template == null
+                ? new LogEvent(loggerName, epochNanos, level, String.valueOf(args[0]), null)
+                : new LogEvent(loggerName, epochNanos, level, template, args);
+        return event.format();
+    }
+}
+
+// Чтение двоичного лога. Записи неподходящего уровня или времени
+// пропускаются по длине без разбора аргументов.
+class BinaryLogDecoder implements Closeable {
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private final DataInputStream in;
+    private final Map<Integer, String> templates = new HashMap<>();
+    private final int version;
+
+    public BinaryLogDecoder(InputStream stream) throws IOException {
+        this.in = new DataInputStream(stream instanceof BufferedInputStream ? stream : new BufferedInputStream(stream, 64 * 1024));
+        byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+            throw new IOException("Файл не является двоичным логом");
+        }
+        version = in.readUnsignedByte();
+        if (version < 1 || version > BinaryLogFormat.VERSION) {
+            throw new IOException("Неподдерживаемая версия двоичного лога: " + version);
+        }
+    }
+
+    // Следующая запись уровня не ниже minLevel, попадающая в [fromNanos, toNanos); null в конце файла
+    public BinaryLogRecord next(LogLevel minLevel, long fromNanos, long toNanos) throws IOException {
+        while (true) {
+            int tag = in.read();
+            if (tag < 0) {
+                return null;
+            }
+            try {
+                if (tag == BinaryLogFormat.TEMPLATE_RECORD) {
+                    int id = in.readInt();
+                    templates.put(id, readString());
+                    continue;
+                }
+                if (tag != BinaryLogFormat.EVENT_RECORD) {
+                    throw new IOException("Поврежденная запись двоичного лога: тип " + tag);
+                }
+                int length = in.readInt();
+                long epochNanos = in.readLong();
+                int levelOrdinal = in.readUnsignedByte();
+                if (levelOrdinal < minLevel.ordinal() || epochNanos < fromNanos || epochNanos >= toNanos) {
+                    in.skipNBytes(length - 9);
+                    continue;
+                }
+                int loggerId = version >= 2 ? in.readInt() : BinaryLogFormat.NO_TEMPLATE;
+                int templateId = in.readInt();
+                Object[] args = new Object[in.readUnsignedByte()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = readArg();
+                }
+                String template = templateId == BinaryLogFormat.NO_TEMPLATE ? null : templates.get(templateId);
+                String loggerName = loggerId == BinaryLogFormat.NO_TEMPLATE ? "" : templates.get(loggerId);
+                return new BinaryLogRecord(loggerName, epochNanos, LEVELS[levelOrdinal], template, args);
+            } catch (EOFException e) {
+                // Недописанная последняя запись
+                return null;
+            }
+        }
+    }
+
+    public BinaryLogRecord next() throws IOException {
+        return next(LEVELS[0], Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private Object readArg() throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case BinaryLogFormat.ARG_NULL:
+                return null;
+            case BinaryLogFormat.ARG_INT:
+                return in.readInt();
+            case BinaryLogFormat.ARG_LONG:
+                return in.readLong();
+            case BinaryLogFormat.ARG_DOUBLE:
+                return in.readDouble();
+            case BinaryLogFormat.ARG_BOOLEAN:
+                return in.readBoolean();
+            case BinaryLogFormat.ARG_STRING:
+                return readString();
+            default:
+                throw new IOException("Неизвестный тип аргумента: " + type);
+        }
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // Шаблоны, уже определенные в файле (для дописывания в него)
+    public static Map<String, Integer> readTemplateIds(Path file) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        try (BinaryLogDecoder decoder = new BinaryLogDecoder(Files.newInputStream(file))) {
+            LogLevel highest = LEVELS[LEVELS.length - 1];
+            // Фильтр по пустому интервалу времени: события только пропускаются
+            while (decoder.next(highest, 0, 0) != null) {
+            }
+            for (Map.Entry<Integer, String> entry : decoder.templates.entrySet()) {
+                ids.put(entry.getValue(), entry.getKey());
+            }
+        }
+        return ids;
+    }
+}
+
+// Гистограмма задержек без блокировок: логарифмические интервалы,
+// каждый степенной интервал разбит на 8 частей (погрешность до 12.5%)
+class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucketIndex(Math.max(0, nanos)));
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // Верхняя граница интервала
+    private static long bucketUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+    }
+
+    // Значения перцентилей (доли от 0 до 1) по одному проходу
+    public long[] percentiles(double... fractions) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long[] result = new long[fractions.length];
+        if (total == 0) {
+            return result;
+        }
+        for (int f = 0; f < fractions.length; f++) {
+            long target = Math.max(1, (long) Math.ceil(fractions[f] * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    result[f] = bucketUpperBound(i);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
+
+// Снимок метрик логгера
+class LoggerStats {
+    private final long[] levelCounts;
+    private final long bytesWritten;
+    private final long droppedCount;
+    private final long suppressedCount;
+    private final long queueDepth;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+
+    public LoggerStats(long[] levelCounts, long bytesWritten, long droppedCount, long suppressedCount,
+                       long queueDepth, long p50Nanos, long p99Nanos, long p999Nanos) {
+        this.levelCounts = levelCounts;
+        this.bytesWritten = bytesWritten;
+        this.droppedCount = droppedCount;
+        this.suppressedCount = suppressedCount;
+        this.queueDepth = queueDepth;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+    }
+
+    public long getCount(LogLevel level) {
+        return levelCounts[level.ordinal()];
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getLatencyP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getLatencyP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getLatencyP999Nanos() {
+        return p999Nanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("Статистика логгера:");
+        for (LogLevel level : LogLevel.values()) {
+            result.append(' ').append(level).append('=').append(getCount(level));
+        }
+        return result.append(", байт записано: ").append(bytesWritten)
+                .append(", отброшено: ").append(droppedCount)
+                .append(", подавлено повторов: ").append(suppressedCount)
+                .append(", в очереди: ").append(queueDepth)
+                .append(", задержка log() p50/p99/p999: ")
+                .append(p50Nanos).append('/').append(p99Nanos).append('/').append(p999Nanos).append(" нс")
+                .toString();
+    }
+}
+
+// Паттерн "Одиночка" для метрик логгера.
+// Счетчики пополняются на горячем пути без блокировок (LongAdder),
+// снимок доступен через Logger.stats() и по JMX (Pract6:type=Logger).
+class LoggerMetrics implements DynamicMBean {
+    private static LoggerMetrics instance;
+    private static Object lock = new Object();
+
+    private final LongAdder[] levelCounts = new LongAdder[LogLevel.values().length];
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder dropped = new LongAdder(); // переполнение буфера асинхронной записи
+    private final LongAdder suppressed = new LongAdder(); // повторы, подавленные MessageSuppressor
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private LoggerMetrics() {
+        for (int i = 0; i < levelCounts.length; i++) {
+            levelCounts[i] = new LongAdder();
+        }
+    }
+
+    public static LoggerMetrics getInstance() {
+        if (instance == null) {
+            synchronized (lock) {
+                if (instance == null) {
+                    instance = new LoggerMetrics();
+                    instance.registerMBean();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Pract6:type=Logger"));
+        } catch (JMException e) {
+            System.err.println("Не удалось зарегистрировать MBean логгера: " + e.getMessage());
+        }
+    }
+
+    public void recordEvent(LogLevel level, long latencyNanos) {
+        levelCounts[level.ordinal()].increment();
+        latency.record(latencyNanos);
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void addDropped(long count) {
+        dropped.add(count);
+    }
+
+    public void addSuppressed(long count) {
+        suppressed.add(count);
+    }
+
+    public LoggerStats snapshot(long queueDepth) {
+        long[] counts = new long[levelCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = levelCounts[i].sum();
+        }
+        long[] p = latency.percentiles(0.50, 0.99, 0.999);
+        return new LoggerStats(counts, bytesWritten.sum(), dropped.sum(), suppressed.sum(), queueDepth,
+                p[0], p[1], p[2]);
+    }
+
+    // Атрибуты MBean: InfoCount, WarningCount, ErrorCount, BytesWritten, DroppedCount, SuppressedCount, QueueDepth, ...
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LoggerStats stats = Logger.stats();
+        for (LogLevel level : LogLevel.values()) {
+            if (attribute.equals(countAttribute(level))) {
+                return stats.getCount(level);
+            }
+        }
+        switch (attribute) {
+            case "BytesWritten":
+                return stats.getBytesWritten();
+            case "DroppedCount":
+                return stats.getDroppedCount();
+            case "SuppressedCount":
+                return stats.getSuppressedCount();
+            case "QueueDepth":
+                return stats.getQueueDepth();
+            case "LatencyP50Nanos":
+                return stats.getLatencyP50Nanos();
+            case "LatencyP99Nanos":
+                return stats.getLatencyP99Nanos();
+            case "LatencyP999Nanos":
+                return stats.getLatencyP999Nanos();
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Атрибуты логгера только для чтения: " + attribute.getName());
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                result.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Неизвестные атрибуты пропускаются
+            }
+        }
+        return result;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (LogLevel level : LogLevel.values()) {
+            attributes.add(longAttribute(countAttribute(level), "Сообщений уровня " + level));
+        }
+        attributes.add(longAttribute("BytesWritten", "Записано байт"));
+        attributes.add(longAttribute("DroppedCount", "Отброшено сообщений при переполнении буфера"));
+        attributes.add(longAttribute("SuppressedCount", "Подавлено повторяющихся сообщений"));
+        attributes.add(longAttribute("QueueDepth", "Сообщений в очередях асинхронной записи"));
+        attributes.add(longAttribute("LatencyP50Nanos", "Медиана задержки log(), нс"));
+        attributes.add(longAttribute("LatencyP99Nanos", "99-й перцентиль задержки log(), нс"));
+        attributes.add(longAttribute("LatencyP999Nanos", "99.9-й перцентиль задержки log(), нс"));
+        return new MBeanInfo(getClass().getName(), "Метрики логгера",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    // InfoCount, WarningCount, ErrorCount
+    private static String countAttribute(LogLevel level) {
+        String name = level.name();
+        return name.charAt(0) + name.substring(1).toLowerCase() + "Count";
+    }
+
+    private static MBeanAttributeInfo longAttribute(String name, String description) {
+        return new MBeanAttributeInfo(name, "long", description, true, false, false);
+    }
+}
+
+// Подавление повторяющихся сообщений: в каждом окне windowMs пропускаются
+// первые limit сообщений с одним шаблоном, остальные только считаются,
+// а по окончании окна пишется одна строка "повторено N раз".
+// Таблица фиксированного размера без блокировок: шаблон попадает в корзину
+// из WAYS соседних ячеек, ячейка хранит состояние окна и заменяется через CAS.
+// Живое окно чужого шаблона не вытесняется: если свободной ячейки в корзине
+// нет, сообщение пишется без подавления.
+class MessageSuppressor {
+    private static final String SUMMARY_TEMPLATE = "Сообщение повторено еще {} раз за {} мс: {}";
+    private static final int WAYS = 4;
+    private static final long CLOSED = Long.MIN_VALUE; // счетчик окна, итог которого уже записан
+
+    private final int limit;
+    private final long windowMs;
+    private final AtomicReferenceArray<Window> slots;
+    private final int mask;
+    private final ScheduledExecutorService sweeper;
+
+    // Состояние одного шаблона в текущем окне
+    private static final class Window {
+        final Logger logger;
+        final LogLevel level;
+        final String template;
+        final long start;
+        final AtomicLong count = new AtomicLong(1);
+
+        Window(Logger logger, LogLevel level, String template, long start) {
+            this.logger = logger;
+            this.level = level;
+            this.template = template;
+            this.start = start;
+        }
+
+        boolean matches(Logger logger, LogLevel level, String template) {
+            return this.logger == logger && this.level == level
+                    && (this.template == template || this.template.equals(template));
+        }
+
+        // Итоговое число сообщений; после закрытия admit не засчитывает в окно новые
+        long close() {
+            return count.getAndSet(CLOSED);
+        }
+    }
+
+    // tableSize округляется вверх до степени двойки, не меньше WAYS
+    public MessageSuppressor(int limit, long windowMs, int tableSize) {
+        if (limit <= 0 || windowMs <= 0 || tableSize <= 0) {
+            throw new IllegalArgumentException("Некорректные параметры подавления повторов: "
+                    + limit + ", " + windowMs + ", " + tableSize);
+        }
+        this.limit = limit;
+        this.windowMs = windowMs;
+        int size = Integer.highestOneBit(Math.max(tableSize - 1, WAYS - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - WAYS; // номер первой ячейки корзины
+        // Итоги окон, после которых повторов больше не было
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "log-suppressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> sweep(false), windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    // true - событие нужно записать; итог вытесненного окна записывается сразу
+    public boolean admit(Logger logger, LogEvent event) throws IOException {
+        String template = event.getTemplate();
+        if (template == null) {
+            return true;
+        }
+        long now = event.getTimestamp();
+        LogLevel level = event.getLevel();
+        int hash = template.hashCode() * 31 + System.identityHashCode(logger);
+        int bucket = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            int free = -1;
+            Window expired = null;
+            boolean retry = false;
+            for (int i = bucket; i < bucket + WAYS; i++) {
+                Window current = slots.get(i);
+                if (current == null) {
+                    free = free < 0 ? i : free;
+                } else if (now - current.start >= windowMs) {
+                    if (free < 0 || current.matches(logger, level, template)) {
+                        free = i;
+                        expired = current;
+                    }
+                } else if (current.matches(logger, level, template)) {
+                    long count = current.count.incrementAndGet();
+                    if (count < 0) {
+                        retry = true; // окно закрыли между чтением ячейки и подсчетом
+                        break;
+                    }
+                    if (count <= limit) {
+                        return true;
+                    }
+                    LoggerMetrics.getInstance().addSuppressed(1);
+                    return false;
+                }
+            }
+            if (retry) {
+                continue;
+            }
+            if (free < 0) {
+                return true; // корзина занята живыми окнами других шаблонов
+            }
+            Window fresh = new Window(logger, level, template, now);
+            if (slots.compareAndSet(free, expired, fresh)) {
+                if (expired != null) {
+                    writeSummary(expired);
+                }
+                return true;
+            }
+        }
+    }
+
+    // Запись итогов истекших окон (all - всех окон, при закрытии)
+    private void sweep(boolean all) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < slots.length(); i++) {
+            Window current = slots.get(i);
+            if (current != null && (all || now - current.start >= windowMs)
+                    && slots.compareAndSet(i, current, null)) {
+                try {
+                    writeSummary(current);
+                } catch (IOException e) {
+                    System.err.println("Ошибка записи итога повторов: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void writeSummary(Window window) throws IOException {
+        long suppressed = window.close() - limit;
+        if (suppressed > 0) {
+            window.logger.deliver(new LogEvent(window.logger.getName(), LogEvent.currentEpochNanos(), window.level,
+                    SUMMARY_TEMPLATE, new Object[] {suppressed, windowMs, window.template}));
+        }
+    }
+
+    // Остановка таймера с записью итогов всех незакрытых окон
+    public void close() {
+        sweeper.shutdownNow();
+        sweep(true);
+    }
+}
+
+// Паттерн "Одиночка" для логгера.
+// getInstance() возвращает корневой логгер; getLogger("a.b.c") - именованные
+// логгеры, образующие иерархию по точкам в имени. Уровень и приемники
+// наследуются от родителя и заранее сводятся в volatile-поля, поэтому
+// проверка уровня при логировании - одно сравнение.
 class Logger {
     private static Logger instance;
     private static Object lock = new Object();
-    private LogLevel currentLogLevel;
-    private String logFilePath;
+    private static final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+    private static final LogAppender[] NO_APPENDERS = new LogAppender[0];
+    private static volatile MessageSuppressor suppressor; // null - повторы не подавляются
+    // Доставка идет под общей блокировкой; замена приемников ждет исключительной,
+    // чтобы не закрыть приемник, которому другой поток еще передает событие
+    private static final ReentrantReadWriteLock delivery = new ReentrantReadWriteLock();
+
+    private final String name;
+    private final Logger parent;
+    private final List<Logger> children = new CopyOnWriteArrayList<>();
+    private final List<LogAppender> appenders = new CopyOnWriteArrayList<>();
+    private boolean additive = true;
+    private LogLevel currentLogLevel; // null - уровень берется у родителя
+    private volatile LogLevel effectiveLevel;
+    private volatile LogAppender[] effectiveAppenders = NO_APPENDERS;
+
+    private final MainSettings main; // null у именованных логгеров
+
+    // Настройки основного приемника. Основной приемник один на всю иерархию
+    // и подключен к корневому логгеру, поэтому настройки есть только у него;
+    // loadConfiguration любого логгера меняет именно их
+    private static final class MainSettings {
+        String logFilePath = "log.txt"; // Путь к файлу логов по умолчанию
+        boolean async;
+        int asyncBufferSize = 8192;
+        OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        Durability durability = Durability.NONE;
+        long fsyncIntervalMs = 1000;
+        String outputMode = "file";
+        long segmentSize = 64L * 1024 * 1024;
+        String format = "text";
+        long maxFileSize;
+        long rotationIntervalMs;
+        int maxHistory;
+        boolean compressRotated;
+        boolean bloomFilter;
+        int indexInterval;
+        LogLevel appenderLevel;
+        boolean flightRecorder;
+        int flightRecorderSize = 4096;
+        int flightRecorderSlotSize = 512;
+        String flightRecorderDumpPath = "flight-recorder.txt";
+        int suppressAfter; // 0 - повторы не подавляются
+        long suppressWindowMs = 1000;
+        int suppressTableSize = 4096;
+        List<LogAppender> configuredAppenders = new ArrayList<>();
+    }
+
+    // Приватный конструктор корневого логгера
+    private Logger() {
+        name = "";
+        parent = null;
+        currentLogLevel = LogLevel.INFO;
+        main = new MainSettings();
+        main.configuredAppenders.add(new FileLogAppender(main.logFilePath));
+        appenders.addAll(main.configuredAppenders);
+        updateEffectiveSettings();
+        // Дописываем накопленные сообщения при завершении программы
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::closeAll));
+    }
+
+    // Приватный конструктор именованного логгера
+    private Logger(String name, Logger parent) {
+        this.name = name;
+        this.parent = parent;
+        this.main = null;
+    }
+
+    // Метод для получения единственного экземпляра
+    public static Logger getInstance() {
+        if (instance == null) {
+            synchronized (lock) {
+                if (instance == null) {
+                    instance = new Logger();
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Логгер с иерархическим именем ("db", "db.pool", ...); "" - корневой
+    public static Logger getLogger(String name) {
+        if (name == null || name.isEmpty()) {
+            return getInstance();
+        }
+        Logger logger = loggers.get(name);
+        if (logger != null) {
+            return logger;
+        }
+        Logger root = getInstance();
+        synchronized (lock) {
+            logger = loggers.get(name);
+            if (logger == null) {
+                int dot = name.lastIndexOf('.');
+                Logger parent = dot > 0 ? getLogger(name.substring(0, dot)) : root;
+                logger = new Logger(name, parent);
+                parent.children.add(logger);
+                logger.updateEffectiveSettings();
+                loggers.put(name, logger);
+            }
+            return logger;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Метод для установки уровня логирования; null у именованного логгера - наследовать от родителя
+    public void setLogLevel(LogLevel level) {
+        if (level == null && parent == null) {
+            throw new IllegalArgumentException("У корневого логгера должен быть уровень");
+        }
+        synchronized (lock) {
+            currentLogLevel = level;
+            updateEffectiveSettings();
+        }
+    }
+
+    public LogLevel getEffectiveLevel() {
+        return effectiveLevel;
+    }
+
+    // Добавление приемника только для этого логгера и его потомков
+    public void addAppender(LogAppender extra) {
+        synchronized (lock) {
+            appenders.add(extra);
+            updateEffectiveSettings();
+        }
+    }
+
+    public void removeAppender(LogAppender extra) {
+        synchronized (lock) {
+            appenders.remove(extra);
+            updateEffectiveSettings();
+        }
+    }
+
+    // false - сообщения не передаются приемникам родителей
+    public void setAdditive(boolean additive) {
+        synchronized (lock) {
+            this.additive = additive;
+            updateEffectiveSettings();
+        }
+    }
+
+    // Пересчет унаследованного уровня и приемников для логгера и всех потомков (под lock)
+    private void updateEffectiveSettings() {
+        effectiveLevel = currentLogLevel != null ? currentLogLevel : parent.effectiveLevel;
+        List<LogAppender> all = new ArrayList<>(appenders);
+        if (additive && parent != null) {
+            all.addAll(Arrays.asList(parent.effectiveAppenders));
+        }
+        effectiveAppenders = all.toArray(NO_APPENDERS);
+        for (Logger child : children) {
+            child.updateEffectiveSettings();
+        }
+    }
+
+    // Будет ли записано сообщение с данным уровнем
+    public boolean isEnabled(LogLevel level) {
+        return level.ordinal() >= effectiveLevel.ordinal();
+    }
+
+    // Метод для логирования сообщений
+    public void log(String message, LogLevel level) throws IOException {
+        if (isEnabled(level)) {
+            long start = System.nanoTime();
+            dispatch(new LogEvent(name, LogEvent.currentEpochNanos(), level, message, null), start);
+        }
+    }
+
+    // Сообщение строится только если уровень включен
+    public void log(LogLevel level, Supplier<String> messageSupplier) throws IOException {
+        if (isEnabled(level)) {
+            long start = System.nanoTime();
+            dispatch(new LogEvent(name, LogEvent.currentEpochNanos(), level, messageSupplier.get(), null), start);
+        }
+    }
+
+    // Сообщение по шаблону с подстановкой аргументов вместо {}.
+    // Для отключенного уровня шаблон не разбирается.
+    public void log(LogLevel level, String template, Object... args) throws IOException {
+        if (isEnabled(level)) {
+            long start = System.nanoTime();
+            dispatch(new LogEvent(name, LogEvent.currentEpochNanos(), level, template, args), start);
+        }
+    }
+
+    // Передача события приемникам с учетом времени вызова в метриках
+    private void dispatch(LogEvent event, long startNanos) throws IOException {
+        try {
+            MessageSuppressor current = suppressor;
+            if (current == null || current.admit(this, event)) {
+                deliver(event);
+            }
+        } finally {
+            LoggerMetrics.getInstance().recordEvent(event.getLevel(), System.nanoTime() - startNanos);
+        }
+    }
+
+    // Передача события приемникам в обход подавления повторов
+    void deliver(LogEvent event) throws IOException {
+        delivery.readLock().lock();
+        try {
+            for (LogAppender target : effectiveAppenders) {
+                target.append(event);
+            }
+        } finally {
+            delivery.readLock().unlock();
+        }
+    }
+
+    // Снимок метрик всех логгеров
+    public static LoggerStats stats() {
+        long queueDepth = 0;
+        List<Logger> all = new ArrayList<>(loggers.values());
+        all.add(getInstance());
+        for (Logger logger : all) {
+            for (LogAppender target : logger.appenders) {
+                if (target instanceof ThresholdAppender) {
+                    target = ((ThresholdAppender) target).getDelegate();
+                }
+                if (target instanceof AsyncLogAppender) {
+                    queueDepth += ((AsyncLogAppender) target).getQueueSize();
+                }
+            }
+        }
+        return LoggerMetrics.getInstance().snapshot(queueDepth);
+    }
+
+    // Метод для чтения настроек логгера из файла.
+    // Уровни отдельных логгеров задаются ключами вида LogLevel.db.pool=WARNING.
+    public void loadConfiguration(String configFilePath) throws IOException {
+        Logger root = getInstance();
+        MainSettings settings = root.main;
+        synchronized (settings) {
+            root.applyConfiguration(configFilePath, this);
+        }
+    }
+
+    // Разбор файла настроек (у корневого логгера, под блокировкой его настроек);
+    // ключ LogLevel задает уровень логгера target
+    private void applyConfiguration(String configFilePath, Logger target) throws IOException {
+        MainSettings settings = main;
+        BufferedReader reader = new BufferedReader(new FileReader(configFilePath));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split("=");
+            if (parts[0].equals("LogLevel")) {
+                target.setLogLevel(LogLevel.valueOf(parts[1]));
+            } else if (parts[0].startsWith("LogLevel.")) {
+                getLogger(parts[0].substring("LogLevel.".length())).setLogLevel(LogLevel.valueOf(parts[1]));
+            } else if (parts[0].equals("LogFilePath")) {
+                settings.logFilePath = parts[1];
+            } else if (parts[0].equals("Async")) {
+                settings.async = Boolean.parseBoolean(parts[1]);
+            } else if (parts[0].equals("AsyncBufferSize")) {
+                settings.asyncBufferSize = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("OverflowPolicy")) {
+                settings.overflowPolicy = OverflowPolicy.valueOf(parts[1]);
+            } else if (parts[0].equals("Durability")) {
+                settings.durability = Durability.fromConfig(parts[1]);
+            } else if (parts[0].equals("FsyncIntervalMs")) {
+                settings.fsyncIntervalMs = Long.parseLong(parts[1]);
+            } else if (parts[0].equals("OutputMode")) {
+                settings.outputMode = parts[1].trim().toLowerCase();
+            } else if (parts[0].equals("Format")) {
+                settings.format = parts[1].trim().toLowerCase();
+            } else if (parts[0].equals("SegmentSize")) {
+                settings.segmentSize = Long.parseLong(parts[1]);
+            } else if (parts[0].equals("MaxFileSize")) {
+                settings.maxFileSize = Long.parseLong(parts[1]);
+            } else if (parts[0].equals("RotationIntervalMs")) {
+                settings.rotationIntervalMs = Long.parseLong(parts[1]);
+            } else if (parts[0].equals("MaxHistory")) {
+                settings.maxHistory = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("CompressRotated")) {
+                settings.compressRotated = Boolean.parseBoolean(parts[1]);
+            } else if (parts[0].equals("BloomFilter")) {
+                settings.bloomFilter = Boolean.parseBoolean(parts[1]);
+            } else if (parts[0].equals("IndexInterval")) {
+                settings.indexInterval = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("AppenderLevel")) {
+                settings.appenderLevel = LogLevel.valueOf(parts[1]);
+            } else if (parts[0].equals("FlightRecorder")) {
+                settings.flightRecorder = Boolean.parseBoolean(parts[1]);
+            } else if (parts[0].equals("FlightRecorderSize")) {
+                settings.flightRecorderSize = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("FlightRecorderSlotSize")) {
+                settings.flightRecorderSlotSize = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("FlightRecorderDumpPath")) {
+                settings.flightRecorderDumpPath = parts[1];
+            } else if (parts[0].equals("SuppressAfter")) {
+                settings.suppressAfter = Integer.parseInt(parts[1]);
+            } else if (parts[0].equals("SuppressWindowMs")) {
+                settings.suppressWindowMs = Long.parseLong(parts[1]);
+            } else if (parts[0].equals("SuppressTableSize")) {
+                settings.suppressTableSize = Integer.parseInt(parts[1]);
+            }
+        }
+        reader.close();
+        reconfigure();
+    }
+
+    // Пересоздание основных приемников после изменения настроек
+    private void reconfigure() throws IOException {
+        RotationPolicy rotation = new RotationPolicy(main.maxFileSize, main.rotationIntervalMs, main.maxHistory,
+                main.compressRotated, main.bloomFilter);
+        LogAppender next;
+        if (main.format.equals("binary")) {
+            next = new BinaryLogAppender(main.logFilePath, main.durability, main.fsyncIntervalMs, rotation);
+        } else if (main.outputMode.equals("mmap")) {
+            next = new MappedLogAppender(main.logFilePath, main.segmentSize, main.durability, rotation);
+        } else {
+            next = new FileLogAppender(main.logFilePath, main.durability, main.fsyncIntervalMs, rotation, main.indexInterval);
+        }
+        if (main.async) {
+            next = new AsyncLogAppender(next, main.asyncBufferSize, main.overflowPolicy);
+        }
+        if (main.appenderLevel != null) {
+            next = new ThresholdAppender(next, main.appenderLevel);
+        }
+        List<LogAppender> created = new ArrayList<>();
+        created.add(next);
+        if (main.flightRecorder) {
+            created.add(new FlightRecorderAppender(main.flightRecorderSize, main.flightRecorderSlotSize,
+                    main.flightRecorderDumpPath, LogLevel.ERROR));
+        }
+        MessageSuppressor nextSuppressor = main.suppressAfter > 0
+                ? new MessageSuppressor(main.suppressAfter, main.suppressWindowMs, main.suppressTableSize) : null;
+        List<LogAppender> previous;
+        MessageSuppressor previousSuppressor;
+        synchronized (lock) {
+            previousSuppressor = suppressor;
+            suppressor = nextSuppressor;
+            previous = main.configuredAppenders;
+            appenders.removeAll(previous);
+            main.configuredAppenders = created;
+            appenders.addAll(0, created);
+            updateEffectiveSettings();
+        }
+        // Итоги повторов пишутся до закрытия старых приемников
+        if (previousSuppressor != null) {
+            previousSuppressor.close();
+        }
+        awaitDeliveries();
+        for (LogAppender target : previous) {
+            target.close();
+        }
+    }
+
+    // Ожидание доставок, начатых до замены приемников
+    private static void awaitDeliveries() {
+        delivery.writeLock().lock();
+        delivery.writeLock().unlock();
+    }
+
+    // Закрытие приемников логгера с записью оставшихся сообщений
+    public void close() {
+        for (LogAppender target : appenders) {
+            try {
+                target.close();
+            } catch (IOException e) {
+                System.err.println("Ошибка закрытия логгера " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Закрытие всех логгеров при завершении программы
+    private static void closeAll() {
+        MessageSuppressor current = suppressor;
+        if (current != null) {
+            current.close();
+        }
+        for (Logger logger : loggers.values()) {
+            logger.close();
+        }
+        getInstance().close();
+    }
+}
+
+// Сводка по логу, собираемая за один проход: число строк по уровням,
+// гистограмма по интервалам времени и частоты сообщений.
+// Если различных сообщений слишком много, редкие вытесняются -
+// частые (первые в topMessages) при этом считаются точно.
+class LogSummary {
+    private static final int MAX_TRACKED_MESSAGES = 100_000;
+
+    private final long bucketMillis;
+    private final long[] levelCounts = new long[LogLevel.values().length];
+    private final TreeMap<Long, Long> histogram = new TreeMap<>();
+    private final Map<String, Long> messageCounts = new HashMap<>();
+    private long evictedBelow; // сообщения с числом повторов не больше этого могли быть вытеснены
+
+    public LogSummary(long bucketMillis) {
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("Ширина интервала гистограммы должна быть положительной: " + bucketMillis);
+        }
+        this.bucketMillis = bucketMillis;
+    }
+
+    // Учет одной строки лога; строки без уровня пропускаются
+    public void add(String line) {
+        LogLevel level = LogLine.parseLevel(line);
+        if (level == null) {
+            return;
+        }
+        levelCounts[level.ordinal()]++;
+        long timestamp = LogLine.parseTimestamp(line);
+        if (timestamp >= 0) {
+            histogram.merge(Math.floorDiv(timestamp, bucketMillis) * bucketMillis, 1L, Long::sum);
+        }
+        messageCounts.merge(LogLine.message(line), 1L, Long::sum);
+        if (messageCounts.size() > MAX_TRACKED_MESSAGES) {
+            evictRare();
+        }
+    }
+
+    // Добавление сводки другого сегмента с той же шириной интервала
+    public void addAll(LogSummary other) {
+        for (int i = 0; i < levelCounts.length; i++) {
+            levelCounts[i] += other.levelCounts[i];
+        }
+        other.histogram.forEach((bucket, count) -> histogram.merge(bucket, count, Long::sum));
+        other.messageCounts.forEach((message, count) -> messageCounts.merge(message, count, Long::sum));
+        evictedBelow = Math.max(evictedBelow, other.evictedBelow);
+        while (messageCounts.size() > MAX_TRACKED_MESSAGES) {
+            evictRare();
+        }
+    }
+
+    // Удаление самых редких сообщений, пока таблица не уменьшится вдвое
+    private void evictRare() {
+        while (messageCounts.size() > MAX_TRACKED_MESSAGES / 2) {
+            evictedBelow++;
+            messageCounts.values().removeIf(count -> count <= evictedBelow);
+        }
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public long getCount(LogLevel level) {
+        return levelCounts[level.ordinal()];
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (long count : levelCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // Начало интервала (мс) -> число строк в нем
+    public SortedMap<Long, Long> getHistogram() {
+        return Collections.unmodifiableSortedMap(histogram);
+    }
+
+    // n самых частых сообщений по убыванию числа повторов
+    public List<Map.Entry<String, Long>> topMessages(int n) {
+        PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> entry : messageCounts.entrySet()) {
+            if (top.size() < n) {
+                top.add(entry);
+            } else if (n > 0 && entry.getValue() > top.peek().getValue()) {
+                top.poll();
+                top.add(entry);
+            }
+        }
+        List<Map.Entry<String, Long>> result = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            Map.Entry<String, Long> entry = top.poll();
+            result.add(Map.entry(entry.getKey(), entry.getValue()));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    public LogSummary copy() {
+        LogSummary copy = new LogSummary(bucketMillis);
+        copy.addAll(this);
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("Сводка по логу:");
+        for (LogLevel level : LogLevel.values()) {
+            result.append(' ').append(level).append('=').append(getCount(level));
+        }
+        return result.append(", интервалов: ").append(histogram.size())
+                .append(", различных сообщений: ").append(messageCounts.size())
+                .toString();
+    }
+}
+
+// Параллельное чтение текстового лога: диапазон файла делится на куски
+// по границам строк, куски фильтруются в пуле fork/join, а результаты
+// собираются в порядке следования в файле
+class ParallelLogScanner {
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+
+    private final ForkJoinPool pool;
+
+    public ParallelLogScanner(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    // Уже начатые задачи дорабатывают, потоки пула затем завершаются
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // Строки из диапазонов ranges ({начало, конец}), прошедшие фильтр
+    public List<String> scan(FileChannel channel, List<long[]> ranges, Predicate<String> filter) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        for (long[] range : ranges) {
+            split(channel, range[0], range[1], chunks);
+        }
+        if (chunks.isEmpty()) {
+            return new ArrayList<>();
+        }
+        try {
+            return pool.invoke(new ChunkTask(channel, chunks, 0, chunks.size(), filter));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Деление диапазона на куски, каждый из которых заканчивается концом строки
+    private void split(FileChannel channel, long start, long end, List<long[]> chunks) throws IOException {
+        long chunkStart = start;
+        while (end - chunkStart > CHUNK_SIZE) {
+            long boundary = nextLineStart(channel, chunkStart + CHUNK_SIZE, end);
+            chunks.add(new long[] {chunkStart, boundary});
+            chunkStart = boundary;
+        }
+        if (chunkStart < end) {
+            chunks.add(new long[] {chunkStart, end});
+        }
+    }
+
+    // Позиция сразу после первого \n, начиная с position
+    private static long nextLineStart(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        while (position < end) {
+            probe.clear();
+            probe.limit((int) Math.min(probe.capacity(), end - position));
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    // Задача над куском [from, to) списка; делится пополам до одного куска
+    private static class ChunkTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final List<long[]> chunks;
+        private final int from;
+        private final int to;
+        private final Predicate<String> filter;
+
+        ChunkTask(FileChannel channel, List<long[]> chunks, int from, int to, Predicate<String> filter) {
+            this.channel = channel;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (to - from == 1) {
+                List<String> matched = new ArrayList<>();
+                long[] chunk = chunks.get(from);
+                try {
+                    LogReader.scanLines(channel, chunk[0], chunk[1], line -> {
+                        if (filter.test(line)) {
+                            matched.add(line);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return matched;
+            }
+            int middle = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(channel, chunks, from, middle, filter);
+            left.fork();
+            List<String> right = new ChunkTask(channel, chunks, middle, to, filter).compute();
+            List<String> result = left.join();
+            result.addAll(right);
+            return result;
+        }
+    }
+}
+
+// Слежение за логом (аналог tail -f): читаются только новые байты
+// после запомненного смещения. Поток просыпается по событиям WatchService
+// или, если они недоступны или потерялись, по таймауту опроса.
+// Ротация и обрезка файла обнаруживаются по смене файла и его размера.
+class LogFollower implements Closeable {
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private final String logFilePath;
+    private final LogLevel level;
+    private final Consumer<String> consumer;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private WatchService watcher;
+    private FileChannel channel;
+    private Path currentPath;
+    private Object currentKey;
+    private long offset;
+
+    public LogFollower(String logFilePath, LogLevel level, Consumer<String> consumer) throws IOException {
+        this.logFilePath = logFilePath;
+        this.level = level;
+        this.consumer = consumer;
+        Path current = currentFile();
+        if (current != null) {
+            // Уже записанное не выдаем: начинаем с конца данных
+            open(current);
+            offset = LogReader.dataEnd(channel);
+        }
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            Paths.get(logFilePath).toAbsolutePath().getParent().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            watcher = null; // остается только опрос
+        }
+        thread = new Thread(this::followLoop, "log-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void followLoop() {
+        while (running) {
+            try {
+                poll();
+                waitForChange();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            } catch (AsynchronousCloseException e) {
+                // close() прервал чтение канала - обычная остановка
+                if (!running) {
+                    break;
+                }
+                System.err.println("Ошибка чтения лога: " + e.getMessage());
+            } catch (IOException e) {
+                System.err.println("Ошибка чтения лога: " + e.getMessage());
+            }
+        }
+    }
 
-    // Приватный конструктор
-    private Logger() {
-        currentLogLevel = LogLevel.INFO;
-        logFilePath = "log.txt"; // Путь к файлу логов по умолчанию
+    private void waitForChange() throws InterruptedException {
+        if (watcher == null) {
+            Thread.sleep(POLL_INTERVAL_MS);
+            return;
+        }
+        WatchKey key = watcher.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (key != null) {
+            key.pollEvents();
+            key.reset();
+        }
     }
 
-    // Метод для получения единственного экземпляра
-    public static Logger getInstance() {
-        if (instance == null) {
-            synchronized (lock) {
-                if (instance == null) {
-                    instance = new Logger();
+    // Чтение новых данных; при ротации старый файл дочитывается до конца
+    private void poll() throws IOException {
+        Path latest = currentFile();
+        if (channel == null) {
+            if (latest == null) {
+                return;
+            }
+            open(latest);
+        }
+        readNewBytes();
+        Object latestKey = latest == null ? null : fileKey(latest);
+        if (latestKey != null && latestKey.equals(currentKey)) {
+            // Тот же файл, возможно уже переименованный в сегмент
+            currentPath = latest;
+        }
+        boolean rotated = latest == null
+                || !latest.equals(currentPath)
+                || !Objects.equals(latestKey, currentKey);
+        if (rotated) {
+            readNewBytes();
+            flushPartialLine();
+            channel.close();
+            channel = null;
+            if (latest != null) {
+                open(latest);
+                readNewBytes();
+            }
+        } else if (channel.size() < offset) {
+            // Файл обрезан: читаем его заново с начала
+            partialLine.reset();
+            offset = 0;
+            readNewBytes();
+        }
+    }
+
+    // Файл, в который сейчас идет запись: основной или последний несжатый сегмент (режим mmap)
+    private Path currentFile() throws IOException {
+        List<Path> segments = LogSegments.list(logFilePath);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (!segments.get(i).toString().endsWith(".gz")) {
+                return segments.get(i);
+            }
+        }
+        return null;
+    }
+
+    // Двоичный лог построчно не читается: слежение за ним прекращается
+    private void open(Path path) throws IOException {
+        FileChannel opened = FileChannel.open(path, StandardOpenOption.READ);
+        ByteBuffer head = ByteBuffer.allocate(BinaryLogFormat.MAGIC.length);
+        opened.read(head, 0);
+        if (!head.hasRemaining() && Arrays.equals(head.array(), BinaryLogFormat.MAGIC)) {
+            opened.close();
+            running = false;
+            throw new IOException("Слежение за двоичным логом не поддерживается: " + path);
+        }
+        channel = opened;
+        currentPath = path;
+        currentKey = fileKey(path);
+        offset = 0;
+        partialLine.reset();
+    }
+
+    private static Object fileKey(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Чтение от смещения до конца данных (или до нулевого хвоста mmap-сегмента)
+    private void readNewBytes() throws IOException {
+        while (true) {
+            readBuffer.clear();
+            int read = channel.read(readBuffer, offset);
+            if (read <= 0) {
+                return;
+            }
+            byte[] data = readBuffer.array();
+            for (int i = 0; i < read; i++) {
+                byte b = data[i];
+                if (b == 0) {
+                    return;
+                }
+                offset++;
+                if (b == '\n') {
+                    flushPartialLine();
+                } else {
+                    partialLine.write(b);
                 }
             }
         }
-        return instance;
     }
 
-    // Метод для установки уровня логирования
-    public void setLogLevel(LogLevel level) {
-        currentLogLevel = level;
+    private void flushPartialLine() {
+        if (partialLine.size() == 0) {
+            return;
+        }
+        String line = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+        partialLine.reset();
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        if (LogLine.hasLevel(line, level)) {
+            consumer.accept(line);
+        }
     }
 
-    // Метод для логирования сообщений
-    public void log(String message, LogLevel level) throws IOException {
-        if (level.ordinal() >= currentLogLevel.ordinal()) {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true));
-            writer.write(new Date() + " [" + level + "] " + message);
-            writer.newLine();
-            writer.close();
+    public void close() throws IOException {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (channel != null) {
+            channel.close();
         }
     }
+}
 
-    // Метод для чтения настроек логгера из файла
-    public void loadConfiguration(String configFilePath) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(configFilePath));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            String[] parts = line.split("=");
-            if (parts[0].equals("LogLevel")) {
-                setLogLevel(LogLevel.valueOf(parts[1]));
-            } else if (parts[0].equals("LogFilePath")) {
-                logFilePath = parts[1];
+// Чтение нескольких логов (например, разных процессов) одним потоком,
+// упорядоченным по времени записи (слияние k потоков через кучу).
+// Каждый лог читается по своим сегментам подряд: следующий сегмент
+// открывается только после того, как дочитан предыдущий.
+// Строки без времени (продолжение многострочного сообщения) выдаются
+// вместе с записью, к которой относятся.
+class MergedLogReader implements Iterator<String>, Closeable {
+    private final List<Source> sources = new ArrayList<>();
+    private final PriorityQueue<Source> heap = new PriorityQueue<>(
+            Comparator.comparingLong((Source source) -> source.timestamp).thenComparingInt(source -> source.order));
+
+    public MergedLogReader(List<String> logFilePaths) throws IOException {
+        try {
+            for (String logFilePath : logFilePaths) {
+                Source source = new Source(LogSegments.list(logFilePath), sources.size());
+                sources.add(source);
+                if (source.advance()) {
+                    heap.add(source);
+                }
             }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    // Следующая по времени запись; строки продолжения разделены \n
+    public String next() {
+        Source source = heap.poll();
+        if (source == null) {
+            throw new NoSuchElementException();
+        }
+        String record = source.record;
+        try {
+            if (source.advance()) {
+                heap.add(source);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return record;
+    }
+
+    public void close() throws IOException {
+        for (Source source : sources) {
+            source.closeSegment();
+        }
+        heap.clear();
+    }
+
+    // Один лог: его сегменты по порядку и текущая запись
+    private static class Source {
+        // Больше строк без времени подряд не склеивается: остальные идут отдельными записями
+        private static final int MAX_CONTINUATION_LINES = 1000;
+
+        final Deque<Path> segments;
+        final int order;
+        BufferedReader reader;
+        BinaryLogDecoder decoder;
+        String record;
+        long timestamp = Long.MIN_VALUE;
+        String pending; // первая строка следующей записи
+        long pendingTimestamp;
+
+        Source(List<Path> segments, int order) {
+            this.segments = new ArrayDeque<>(segments);
+            this.order = order;
+        }
+
+        // Чтение следующей записи; false - лог закончился
+        boolean advance() throws IOException {
+            String first = pending;
+            long firstTimestamp = pendingTimestamp;
+            pending = null;
+            if (first == null) {
+                first = nextLine();
+                if (first == null) {
+                    record = null;
+                    return false;
+                }
+                firstTimestamp = LogLine.parseTimestamp(first);
+            }
+            // Запись без времени в начале лога ставится по времени предыдущей
+            if (firstTimestamp >= 0) {
+                timestamp = firstTimestamp;
+            }
+            StringBuilder continued = null;
+            int continuationLines = 0;
+            String line;
+            while ((line = nextLine()) != null) {
+                long lineTimestamp = LogLine.parseTimestamp(line);
+                if (lineTimestamp >= 0 || continuationLines == MAX_CONTINUATION_LINES) {
+                    pending = line;
+                    pendingTimestamp = lineTimestamp;
+                    break;
+                }
+                if (continued == null) {
+                    continued = new StringBuilder(first);
+                }
+                continued.append('\n').append(line);
+                continuationLines++;
+            }
+            record = continued == null ? first : continued.toString();
+            return true;
+        }
+
+        // Следующая строка лога с переходом к следующему сегменту
+        private String nextLine() throws IOException {
+            while (true) {
+                if (decoder != null) {
+                    BinaryLogRecord next = decoder.next();
+                    if (next != null) {
+                        return next.render();
+                    }
+                } else if (reader != null) {
+                    String line = reader.readLine();
+                    if (line != null) {
+                        return line;
+                    }
+                }
+                closeSegment();
+                Path segment = segments.poll();
+                if (segment == null) {
+                    return null;
+                }
+                openSegment(segment);
+            }
+        }
+
+        private void openSegment(Path segment) throws IOException {
+            InputStream in;
+            if (segment.toString().endsWith(".gz")) {
+                in = LogSegments.openStream(segment);
+            } else {
+                // Нулевой хвост открытого mmap-сегмента не читается
+                FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ);
+                long end = LogReader.dataEnd(channel);
+                in = new BufferedInputStream(new BoundedInputStream(Channels.newInputStream(channel), end), 64 * 1024);
+            }
+            if (BinaryLogFormat.isBinary(in)) {
+                decoder = new BinaryLogDecoder(in);
+            } else {
+                reader = new BufferedReader(new InputStreamReader(LogSegments.textStream(in), StandardCharsets.UTF_8),
+                        64 * 1024);
+            }
+        }
+
+        void closeSegment() throws IOException {
+            if (decoder != null) {
+                decoder.close();
+                decoder = null;
+            }
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+    // Поток, который заканчивается через limit байт
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
         }
-        reader.close();
     }
 }
 
 // Чтение логов с фильтрацией
 class LogReader {
+    private static final int MAX_MAPPED_WINDOW = 256 * 1024 * 1024;
+    // Кэш сводок: путь лога -> (fileKey сегмента, ширина интервала) -> сводка
+    private static final Map<String, Map<List<Object>, CachedSummary>> summaryCache = new ConcurrentHashMap<>();
+
     private String logFilePath;
+    private ParallelLogScanner parallelScanner;
+
+    // Сводка сегмента и состояние файла, по которому она собрана
+    private static class CachedSummary {
+        long size;
+        long modifiedMillis;
+        long processed; // текстовый сегмент: байты [0, processed) уже учтены
+        LogSummary summary;
+    }
 
     public LogReader(String logFilePath) {
         this.logFilePath = logFilePath;
     }
 
+    public LogReader(String logFilePath, int parallelism) {
+        this(logFilePath);
+        setParallelism(parallelism);
+    }
+
+    // Число потоков для чтения текстовых сегментов; 1 - последовательное чтение.
+    // Пул прежнего значения останавливается
+    public void setParallelism(int parallelism) {
+        ParallelLogScanner previous = parallelScanner;
+        parallelScanner = parallelism > 1 ? new ParallelLogScanner(parallelism) : null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
     // Метод для чтения и фильтрации логов по уровню
     public void readLogs(LogLevel filterLevel) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(logFilePath));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.contains("[" + filterLevel + "]")) {
-                System.out.println(line);
+        readLogs(filterLevel, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    // Метод для чтения логов уровня filterLevel за период [fromMillis, toMillis)
+    public void readLogs(LogLevel filterLevel, long fromMillis, long toMillis) throws IOException {
+        for (Path segment : LogSegments.list(logFilePath)) {
+            scanSegment(segment, filterLevel, fromMillis, toMillis, System.out::println);
+        }
+    }
+
+    // Строки уровня level за период [fromMillis, toMillis) в порядке записи
+    public List<String> findLogs(LogLevel level, long fromMillis, long toMillis) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (Path segment : LogSegments.list(logFilePath)) {
+            scanSegment(segment, level, fromMillis, toMillis, result::add);
+        }
+        return result;
+    }
+
+    // Строки, в которых term встречается целыми словами, в порядке записи.
+    // Сегменты, по фильтру Блума которых слов из term в них нет, не читаются;
+    // остальные просматриваются параллельно
+    public List<String> search(String term) throws IOException {
+        ForkJoinPool pool = parallelScanner != null ? parallelScanner.getPool() : ForkJoinPool.commonPool();
+        List<ForkJoinTask<List<String>>> tasks = new ArrayList<>();
+        for (Path segment : LogSegments.list(logFilePath)) {
+            LogBloomFilter filter = LogBloomFilter.read(segment);
+            if (filter == null || filter.mightContainAll(term)) {
+                tasks.add(pool.submit(() -> searchSegment(segment, term)));
+            }
+        }
+        List<String> result = new ArrayList<>();
+        try {
+            for (ForkJoinTask<List<String>> task : tasks) {
+                result.addAll(task.join());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return result;
+    }
+
+    private static List<String> searchSegment(Path segment, String term) {
+        List<String> matched = new ArrayList<>();
+        try {
+            try {
+                forEachLine(segment, line -> {
+                    if (LogBloomFilter.containsTerm(line, term)) {
+                        matched.add(line);
+                    }
+                });
+            } catch (NoSuchFileException e) {
+                // Сегмент успели сжать (читаем архив) или удалить по сроку хранения
+                Path compressed = Paths.get(segment + ".gz");
+                if (!Files.exists(compressed)) {
+                    return matched;
+                }
+                forEachLine(compressed, line -> {
+                    if (LogBloomFilter.containsTerm(line, term)) {
+                        matched.add(line);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return matched;
+    }
+
+    // Чтение нескольких логов (каждый со своими сегментами) в порядке времени записи
+    public static void readMerged(List<String> logFilePaths, LogLevel filterLevel) throws IOException {
+        readMerged(logFilePaths, filterLevel, System.out::println);
+    }
+
+    // Записи уровня filterLevel из нескольких логов в порядке времени записи
+    public static void readMerged(List<String> logFilePaths, LogLevel filterLevel,
+                                  Consumer<String> consumer) throws IOException {
+        try (MergedLogReader merged = new MergedLogReader(logFilePaths)) {
+            while (merged.hasNext()) {
+                String record = merged.next();
+                if (LogLine.parseLevel(record) == filterLevel) {
+                    consumer.accept(record);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Слежение за новыми строками уровня level; остановка - close() у результата
+    public LogFollower follow(LogLevel level, Consumer<String> consumer) throws IOException {
+        return new LogFollower(logFilePath, level, consumer);
+    }
+
+    // Сводка по всем сегментам с гистограммой по минутам
+    public LogSummary summarize() throws IOException {
+        return summarize(60_000);
+    }
+
+    // Число строк по уровням, гистограмма с шагом bucketMillis и частоты
+    // сообщений за один проход. Сводки сегментов кэшируются по fileKey,
+    // размеру и времени изменения файла, поэтому повторный запрос читает
+    // только байты, дописанные в текстовый лог после прошлого запроса
+    public LogSummary summarize(long bucketMillis) throws IOException {
+        Map<List<Object>, CachedSummary> cache = summaryCache.computeIfAbsent(
+                Paths.get(logFilePath).toAbsolutePath().toString(), path -> new ConcurrentHashMap<>());
+        LogSummary result = new LogSummary(bucketMillis);
+        Set<Object> fileKeys = new HashSet<>();
+        List<Path> segments = LogSegments.list(logFilePath);
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(segment, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue; // сегмент сжат или удален архиватором
+            }
+            Object fileKey = attributes.fileKey() != null ? attributes.fileKey() : segment.toAbsolutePath();
+            fileKeys.add(fileKey);
+            CachedSummary cached = cache.computeIfAbsent(List.of(fileKey, bucketMillis), key -> new CachedSummary());
+            synchronized (cached) {
+                refresh(segment, attributes, cached, bucketMillis, i == segments.size() - 1);
+                result.addAll(cached.summary);
+            }
+        }
+        // Сводки удаленных и сжатых сегментов больше не понадобятся
+        cache.keySet().removeIf(key -> !fileKeys.contains(key.get(0)));
+        return result;
+    }
+
+    // Обновление сводки сегмента. Текстовый сегмент дочитывается с места
+    // прошлой остановки (у последнего - только до конца последней полной строки);
+    // сжатый или двоичный после изменения разбирается заново целиком
+    private static void refresh(Path segment, BasicFileAttributes attributes, CachedSummary cached,
+                                long bucketMillis, boolean live) throws IOException {
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        boolean changed = cached.summary == null || size != cached.size || modified != cached.modifiedMillis;
+        if (segment.toString().endsWith(".gz")) {
+            if (changed) {
+                LogSummary summary = new LogSummary(bucketMillis);
+                forEachLine(segment, summary::add);
+                cached.summary = summary;
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                if (isBinary(channel)) {
+                    if (changed) {
+                        LogSummary summary = new LogSummary(bucketMillis);
+                        renderBinary(Channels.newInputStream(channel), summary::add);
+                        cached.summary = summary;
+                    }
+                } else {
+                    // Размер mmap-сегмента не меняется при записи, поэтому конец данных проверяется всегда
+                    long end = dataEnd(channel);
+                    if (cached.summary == null || size < cached.size || end < cached.processed) {
+                        cached.summary = new LogSummary(bucketMillis);
+                        cached.processed = 0;
+                    }
+                    if (live) {
+                        end = lastLineEnd(channel, cached.processed, end);
+                    }
+                    if (end > cached.processed) {
+                        scanLines(channel, cached.processed, end, cached.summary::add);
+                        cached.processed = end;
+                    }
+                }
+            }
+        }
+        cached.size = size;
+        cached.modifiedMillis = modified;
+    }
+
+    // Все строки сегмента любого вида: сжатого, двоичного, mmap с нулевым хвостом
+    static void forEachLine(Path segment, Consumer<String> consumer) throws IOException {
+        if (segment.toString().endsWith(".gz")) {
+            try (InputStream in = LogSegments.openStream(segment)) {
+                if (BinaryLogFormat.isBinary(in)) {
+                    renderBinary(in, consumer);
+                    return;
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(LogSegments.textStream(in),
+                        StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    consumer.accept(line);
+                }
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            if (isBinary(channel)) {
+                renderBinary(Channels.newInputStream(channel), consumer);
+            } else {
+                scanLines(channel, 0, dataEnd(channel), consumer);
+            }
+        }
+    }
+
+    private static void renderBinary(InputStream in, Consumer<String> consumer) throws IOException {
+        try (BinaryLogDecoder decoder = new BinaryLogDecoder(in)) {
+            BinaryLogRecord record;
+            while ((record = decoder.next()) != null) {
+                consumer.accept(record.render());
+            }
+        }
+    }
+
+    // Позиция после последнего \n в [start, end); start, если полных строк нет
+    private static long lastLineEnd(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        long position = end;
+        while (position > start) {
+            int length = (int) Math.min(probe.capacity(), position - start);
+            probe.clear();
+            probe.limit(length);
+            channel.read(probe, position - length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (probe.get(i) == '\n') {
+                    return position - length + i + 1;
+                }
+            }
+            position -= length;
+        }
+        return start;
+    }
+
+    // Сжатые и двоичные сегменты читаются потоком; текстовые - через
+    // отображение в память, только в блоках индекса, которые могут
+    // содержать нужные строки (участки без индекса читаются целиком)
+    private void scanSegment(Path segment, LogLevel level, long fromMillis, long toMillis,
+                             Consumer<String> consumer) throws IOException {
+        Predicate<String> filter = line -> matches(line, level, fromMillis, toMillis);
+        if (segment.toString().endsWith(".gz")) {
+            try (InputStream in = LogSegments.openStream(segment)) {
+                if (BinaryLogFormat.isBinary(in)) {
+                    scanBinary(in, level, fromMillis, toMillis, consumer);
+                    return;
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(LogSegments.textStream(in),
+                        StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (filter.test(line)) {
+                        consumer.accept(line);
+                    }
+                }
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            if (isBinary(channel)) {
+                scanBinary(Channels.newInputStream(channel), level, fromMillis, toMillis, consumer);
+                return;
+            }
+            List<long[]> ranges = rangesToScan(segment, dataEnd(channel), level, fromMillis, toMillis);
+            if (parallelScanner != null) {
+                parallelScanner.scan(channel, ranges, filter).forEach(consumer);
+                return;
+            }
+            for (long[] range : ranges) {
+                scanLines(channel, range[0], range[1], line -> {
+                    if (filter.test(line)) {
+                        consumer.accept(line);
+                    }
+                });
+            }
+        }
+    }
+
+    // Участки файла, которые нужно прочитать, по данным индекса
+    private static List<long[]> rangesToScan(Path segment, long end, LogLevel level, long fromMillis,
+                                             long toMillis) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        long position = 0;
+        for (LogIndex.Block block : LogIndex.read(segment)) {
+            if (block.start < position || block.end > end) {
+                continue;
+            }
+            if (block.start > position) {
+                ranges.add(new long[] {position, block.start});
+            }
+            if (block.mayContain(level, fromMillis, toMillis)) {
+                ranges.add(new long[] {block.start, block.end});
+            }
+            position = block.end;
+        }
+        if (position < end) {
+            ranges.add(new long[] {position, end});
+        }
+        return ranges;
+    }
+
+    // Конец данных: у открытого mmap-сегмента хвост заполнен нулями
+    static long dataEnd(FileChannel channel) throws IOException {
+        long low = 0;
+        long high = channel.size();
+        if (high == 0 || byteAt(channel, high - 1) != 0) {
+            return high;
+        }
+        // Первый нулевой байт хвоста; в тексте лога нулевых байтов нет
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (byteAt(channel, middle) == 0) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    private static byte byteAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        channel.read(one, position);
+        return one.get(0);
+    }
+
+    private static boolean isBinary(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(BinaryLogFormat.MAGIC.length);
+        channel.read(head, 0);
+        return !head.hasRemaining() && Arrays.equals(head.array(), BinaryLogFormat.MAGIC);
+    }
+
+    // Чтение строк из байтов [start, end) файла через отображение в память
+    static void scanLines(FileChannel channel, long start, long end, Consumer<String> consumer) throws IOException {
+        long position = start;
+        while (position < end) {
+            int length = (int) Math.min(end - position, MAX_MAPPED_WINDOW);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                if (window.get(i) == '\n') {
+                    consumer.accept(decodeLine(window, lineStart, i));
+                    lineStart = i + 1;
+                }
+            }
+            if (position + length == end || lineStart == 0) {
+                // Последняя строка диапазона (или строка длиннее окна)
+                if (lineStart < length) {
+                    consumer.accept(decodeLine(window, lineStart, length));
+                }
+                position += length;
+            } else {
+                // Незаконченная строка переносится в следующее окно
+                position += lineStart;
+            }
+        }
+    }
+
+    // Строка из байтов [from, to) без завершающего \r
+    private static String decodeLine(ByteBuffer buffer, int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean matches(String line, LogLevel level, long fromMillis, long toMillis) {
+        if (!LogLine.hasLevel(line, level)) {
+            return false;
+        }
+        if (fromMillis == Long.MIN_VALUE && toMillis == Long.MAX_VALUE) {
+            return true;
+        }
+        long timestamp = LogLine.parseTimestamp(line);
+        return timestamp >= fromMillis && timestamp < toMillis;
+    }
+
+    // Двоичный сегмент: уровень и время сравниваются по фиксированным смещениям,
+    // текст собирается только для подходящих записей
+    private static void scanBinary(InputStream in, LogLevel level, long fromMillis, long toMillis,
+                                   Consumer<String> consumer) throws IOException {
+        try (BinaryLogDecoder decoder = new BinaryLogDecoder(in)) {
+            BinaryLogRecord record;
+            long fromNanos = LogEvent.millisToNanos(fromMillis);
+            long toNanos = LogEvent.millisToNanos(toMillis);
+            while ((record = decoder.next(level, fromNanos, toNanos)) != null) {
+                if (record.getLevel() == level) {
+                    consumer.accept(record.render());
+                }
             }
         }
-        reader.close();
     }
 }
 
@@ -121,16 +4042,26 @@ class ReportStyle {
     }
 }
 
-// Класс отчета
+// Класс отчета.
+// Отчет выводится по частям прямо в приемник (renderTo), без сборки
+// всего текста в одну строку: память не растет с числом разделов.
+// Части хранятся исходными значениями; шаблоны оформления (setTemplates)
+// применяются только при выводе.
 class Report {
     private String header;
     private String content;
     private String footer;
-    private List<String> sections;
+    private List<String> sectionNames;
+    private List<String> sectionContents;
     private ReportStyle style;
+    private HtmlTemplate headerTemplate; // null - часть выводится как есть
+    private HtmlTemplate contentTemplate;
+    private HtmlTemplate sectionNameTemplate;
+    private HtmlTemplate footerTemplate;
 
     public Report() {
-        sections = new ArrayList<>();
+        sectionNames = new ArrayList<>();
+        sectionContents = new ArrayList<>();
     }
 
     public void setHeader(String header) {
@@ -146,31 +4077,75 @@ class Report {
     }
 
     public void addSection(String sectionName, String sectionContent) {
-        sections.add(sectionName + ": " + sectionContent);
+        sectionNames.add(sectionName);
+        sectionContents.add(sectionContent);
     }
 
     public void setStyle(ReportStyle style) {
         this.style = style;
     }
 
-    @Override
-    public String toString() {
-        StringBuilder reportString = new StringBuilder();
-        reportString.append("Отчет (стиль: фон ")
+    // Шаблоны с одним слотом; содержимое разделов выводится шаблоном content
+    public void setTemplates(HtmlTemplate header, HtmlTemplate content, HtmlTemplate sectionName,
+                             HtmlTemplate footer) {
+        this.headerTemplate = header;
+        this.contentTemplate = content;
+        this.sectionNameTemplate = sectionName;
+        this.footerTemplate = footer;
+    }
+
+    // Вывод отчета по частям: заголовок, разделы, подвал
+    public void renderTo(Appendable out) throws IOException {
+        out.append("Отчет (стиль: фон ")
                 .append(style.getBackgroundColor())
                 .append(", цвет текста ")
                 .append(style.getFontColor())
                 .append(", размер шрифта ")
-                .append(style.getFontSize())
+                .append(Integer.toString(style.getFontSize()))
                 .append(")\n")
-                .append("Заголовок: ").append(header).append("\n")
-                .append("Содержание: ").append(content).append("\n");
+                .append("Заголовок: ");
+        renderPart(out, headerTemplate, header);
+        out.append("\n").append("Содержание: ");
+        renderPart(out, contentTemplate, content);
+        out.append("\n");
+
+        for (int i = 0; i < sectionNames.size(); i++) {
+            out.append("Раздел: ");
+            renderPart(out, sectionNameTemplate, sectionNames.get(i));
+            out.append(": ");
+            renderPart(out, contentTemplate, sectionContents.get(i));
+            out.append("\n");
+        }
+
+        out.append("Подвал: ");
+        renderPart(out, footerTemplate, footer);
+        out.append("\n");
+    }
 
-        for (String section : sections) {
-            reportString.append("Раздел: ").append(section).append("\n");
+    // Часть отчета: значение как есть или через шаблон с экранированием прямо в приемник
+    private static void renderPart(Appendable out, HtmlTemplate template, String value) throws IOException {
+        if (template == null) {
+            out.append(value);
+        } else {
+            template.render(out, value);
         }
+    }
 
-        reportString.append("Подвал: ").append(footer).append("\n");
+    // Вывод в поток байтов через буфер кодировщика; поток не закрывается
+    public void renderTo(OutputStream out, Charset charset) throws IOException {
+        Writer writer = new OutputStreamWriter(out, charset);
+        renderTo(writer);
+        writer.flush();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder reportString = new StringBuilder();
+        try {
+            renderTo(reportString);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder не бросает IOException
+        }
         return reportString.toString();
     }
 }
@@ -213,31 +4188,136 @@ class TextReportBuilder implements IReportBuilder {
     }
 }
 
+// Скомпилированный HTML-шаблон со слотами вида {{имя}}.
+// Шаблон разбирается один раз в список операций (литерал или слот)
+// и кэшируется; при выводе значения экранируются прямо в приемник,
+// без промежуточных строк.
+final class HtmlTemplate {
+    private static final ConcurrentHashMap<String, HtmlTemplate> CACHE = new ConcurrentHashMap<>();
+
+    private final String source;
+    private final String[] literals; // литерал перед каждым слотом и хвост шаблона
+    private final int[] slots;       // номер значения для каждого слота
+    private final List<String> names;
+
+    private HtmlTemplate(String source, String[] literals, int[] slots, List<String> names) {
+        this.source = source;
+        this.literals = literals;
+        this.slots = slots;
+        this.names = names;
+    }
+
+    // Получение шаблона из кэша или его компиляция
+    public static HtmlTemplate of(String source) {
+        return CACHE.computeIfAbsent(source, HtmlTemplate::compile);
+    }
+
+    private static HtmlTemplate compile(String source) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int position = 0;
+        int open;
+        while ((open = source.indexOf("{{", position)) >= 0) {
+            int close = source.indexOf("}}", open + 2);
+            if (close < 0) {
+                throw new IllegalArgumentException("Незакрытый слот в шаблоне: " + source);
+            }
+            String name = source.substring(open + 2, close).trim();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Пустое имя слота в шаблоне: " + source);
+            }
+            int index = names.indexOf(name);
+            if (index < 0) {
+                index = names.size();
+                names.add(name);
+            }
+            literals.add(source.substring(position, open));
+            slots.add(index);
+            position = close + 2;
+        }
+        literals.add(source.substring(position));
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new HtmlTemplate(source, literals.toArray(new String[0]), slotArray,
+                Collections.unmodifiableList(names));
+    }
+
+    // Имена слотов в порядке первого появления - в этом порядке передаются значения
+    public List<String> getNames() {
+        return names;
+    }
+
+    // Вывод шаблона с подстановкой экранированных значений
+    public void render(Appendable out, String... values) throws IOException {
+        if (values.length != names.size()) {
+            throw new IllegalArgumentException("Шаблон " + source + " ожидает значения " + names
+                    + ", передано: " + values.length);
+        }
+        for (int i = 0; i < slots.length; i++) {
+            out.append(literals[i]);
+            escape(out, values[slots[i]]);
+        }
+        out.append(literals[slots.length]);
+    }
+
+    // Экранирование: куски без спецсимволов копируются диапазоном целиком
+    public static void escape(Appendable out, CharSequence text) throws IOException {
+        if (text == null) {
+            text = "null";
+        }
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '<': replacement = "&lt;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '&': replacement = "&amp;"; break;
+                case '"': replacement = "&quot;"; break;
+                case '\'': replacement = "&#39;"; break;
+                default: continue;
+            }
+            out.append(text, start, i).append(replacement);
+            start = i + 1;
+        }
+        out.append(text, start, text.length());
+    }
+}
+
 // Реализация строителя HTML отчетов
 class HtmlReportBuilder implements IReportBuilder {
+    private static final HtmlTemplate HEADER = HtmlTemplate.of("<h1>{{header}}</h1>");
+    private static final HtmlTemplate CONTENT = HtmlTemplate.of("<p>{{content}}</p>");
+    private static final HtmlTemplate FOOTER = HtmlTemplate.of("<footer>{{footer}}</footer>");
+    private static final HtmlTemplate SECTION_NAME = HtmlTemplate.of("<section><h2>{{name}}</h2>");
+
     private Report report;
 
+    // Значения хранятся в отчете как есть и экранируются при его выводе
     public HtmlReportBuilder() {
         this.report = new Report();
+        report.setTemplates(HEADER, CONTENT, SECTION_NAME, FOOTER);
     }
 
     public IReportBuilder setHeader(String header) {
-        report.setHeader("<h1>" + header + "</h1>");
+        report.setHeader(header);
         return this;
     }
 
     public IReportBuilder setContent(String content) {
-        report.setContent("<p>" + content + "</p>");
+        report.setContent(content);
         return this;
     }
 
     public IReportBuilder setFooter(String footer) {
-        report.setFooter("<footer>" + footer + "</footer>");
+        report.setFooter(footer);
         return this;
     }
 
     public IReportBuilder addSection(String sectionName, String sectionContent) {
-        report.addSection("<section><h2>" + sectionName + "</h2>", "<p>" + sectionContent + "</p>");
+        report.addSection(sectionName, sectionContent);
         return this;
     }
 